@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static dev.morling.onebrc.CalculateAverage_robjk.LinearProbingHashMap.NAME_LENGTH;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * {@link CalculateAverage_robjk.LinearProbingHashMap} on its own: the name compare (what StationResult.equals used to
+ * be), recording a measurement against an existing station, and folding one worker's map into another. The
+ * accumulate pair is just the update of a found slot, the 64 bit count and sum the slots hold now against the 32 bit
+ * fields they used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+public class RobjkMapBenchmark {
+    static final int RECORDS = 1 << 16;
+
+    @Param({ "realistic", "adversarial" })
+    String shape;
+
+    private StationInputs inputs;
+    private CalculateAverage_robjk.LinearProbingHashMap map;
+    private CalculateAverage_robjk.LinearProbingHashMap otherMap;
+    private long[] slots;
+    private MemorySegment table32;
+
+    @Setup
+    public void setUp() {
+        inputs = StationInputs.create(shape, RECORDS);
+        map = new CalculateAverage_robjk.LinearProbingHashMap();
+        otherMap = new CalculateAverage_robjk.LinearProbingHashMap();
+
+        // both maps see every station, as two workers on a real file would
+        for (int i = 0; i < RECORDS; i++) {
+            mergeRecord(map, i);
+            mergeRecord(otherMap, i);
+        }
+
+        // where each record's station ended up, so the compare can be measured without the probing around it
+        slots = new long[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            long slot = map.homeSlot(inputs.hashes[i]);
+            while (map.table.get(JAVA_INT, slot + NAME_LENGTH) != inputs.nameLengths[i] || !nameEquals(slot, i)) {
+                slot = map.nextSlot(slot);
+            }
+            slots[i] = slot;
+        }
+        table32 = Arena.ofAuto().allocate(map.table.byteSize(), 64);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int nameEquals() {
+        int matches = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            if (nameEquals(slots[i], i)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public CalculateAverage_robjk.LinearProbingHashMap mergeMeasurement() {
+        for (int i = 0; i < RECORDS; i++) {
+            mergeRecord(map, i);
+        }
+        return map;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public CalculateAverage_robjk.LinearProbingHashMap accumulate64() {
+        for (int i = 0; i < RECORDS; i++) {
+            map.recordMeasurement(slots[i], inputs.measurements[i]);
+        }
+        return map;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public MemorySegment accumulate32() {
+        // the slot layout before the 64 bit accumulators, int count, sum, min and max, at the same slots
+        for (int i = 0; i < RECORDS; i++) {
+            long slot = slots[i];
+            int measurement = inputs.measurements[i];
+            table32.set(JAVA_INT, slot, table32.get(JAVA_INT, slot) + 1);
+            table32.set(JAVA_INT, slot + 4, table32.get(JAVA_INT, slot + 4) + measurement);
+            table32.set(JAVA_INT, slot + 8, Math.min(table32.get(JAVA_INT, slot + 8), measurement));
+            table32.set(JAVA_INT, slot + 12, Math.max(table32.get(JAVA_INT, slot + 12), measurement));
+        }
+        return table32;
+    }
+
+    @Benchmark
+    public CalculateAverage_robjk.LinearProbingHashMap mergeMap() {
+        // every station is already present after setup, so this is the matching-entries path every merge of a real
+        // run takes - per map, not per station
+        map.merge(otherMap);
+        return map;
+    }
+
+    private boolean nameEquals(long slot, int record) {
+        return map.nameEquals(slot, inputs.records, inputs.nameOffsets[record], inputs.nameLengths[record],
+                inputs.lastNameWords[record]);
+    }
+
+    private void mergeRecord(CalculateAverage_robjk.LinearProbingHashMap target, int record) {
+        target.merge(inputs.records, inputs.nameOffsets[record], inputs.nameLengths[record],
+                inputs.lastNameWords[record], inputs.hashes[record], inputs.measurements[record]);
+    }
+}
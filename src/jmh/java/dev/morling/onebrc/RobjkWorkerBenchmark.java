@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static dev.morling.onebrc.CalculateAverage_robjk.LONG_UNALIGNED_LE;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+/**
+ * The per record work of {@link CalculateAverage_robjk.Worker}, one primitive at a time plus the whole record loop,
+ * scalar and through {@link CalculateAverage_robjk.VectorWorker}.
+ * Each invocation walks all {@link #RECORDS} records so the branch predictor sees the real mix of name lengths and
+ * measurement shapes rather than the same record over and over - results are per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+public class RobjkWorkerBenchmark {
+    static final int RECORDS = 1 << 16;
+
+    private static final ValueLayout.OfInt INT_UNALIGNED_LE = JAVA_INT_UNALIGNED.withOrder(LITTLE_ENDIAN);
+    private static final int NEW_LINE_MSB = '\n' << 24;
+
+    @Param({ "realistic", "adversarial" })
+    String shape;
+
+    private StationInputs inputs;
+    private CalculateAverage_robjk.Worker worker;
+    private CalculateAverage_robjk.Worker vectorWorker;
+
+    @Setup
+    public void setUp() {
+        inputs = StationInputs.create(shape, RECORDS);
+        worker = new CalculateAverage_robjk.Worker(inputs.records,
+                new CalculateAverage_robjk.ChunkScheduler(inputs.records, inputs.records.byteSize()));
+        // the width comes from -Drobjk.vectorBits, see README_robjk.md for running at 512. Like the real thing, an
+        // unsupported width leaves only the scalar worker - processChunkVector fails alone, the rest still run
+        if (CalculateAverage_robjk.VectorWorker.isSupported()) {
+            vectorWorker = CalculateAverage_robjk.VectorWorker.create(inputs.records,
+                    new CalculateAverage_robjk.ChunkScheduler(inputs.records, inputs.records.byteSize()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int delimiterTrailingZeros() {
+        // the word holding the ';', as the worker's scan loop finally sees it
+        int total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            long offset = inputs.nameOffsets[i] + (inputs.nameLengths[i] & ~7);
+            total += CalculateAverage_robjk.Worker.delimiterTrailingZeros(inputs.records.get(LONG_UNALIGNED_LE, offset));
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int extractMeasurement() {
+        int total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            worker.sourceOffset = inputs.measurementOffsets[i];
+            total += worker.extractMeasurement();
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int extractMeasurementBranching() {
+        // the decoder extractMeasurement replaced, as of the eighth iteration - sign and digit count both branch
+        int total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            long offset = inputs.measurementOffsets[i];
+            int negativeMultiplier = 1;
+            if (inputs.records.get(JAVA_BYTE, offset) == '-') {
+                negativeMultiplier = -1;
+                offset++;
+            }
+
+            int measurementInt = inputs.records.get(INT_UNALIGNED_LE, offset);
+            if ((measurementInt & 0xFF000000) == NEW_LINE_MSB) {
+                total += ((measurementInt & 0xF) * 10
+                        + (measurementInt >> 16 & 0xF))
+                        * negativeMultiplier;
+            } else {
+                total += ((measurementInt & 0xf) * 100
+                        + (measurementInt >> 8 & 0xF) * 10
+                        + (measurementInt >> 24 & 0xF))
+                        * negativeMultiplier;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int stationHash() {
+        int total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            long nameOffset = inputs.nameOffsets[i];
+            long hash = 0;
+            for (int word = 0; word < inputs.nameLengths[i] >>> 3; word++) {
+                hash = CalculateAverage_robjk.Worker.mixHash(hash,
+                        inputs.records.get(LONG_UNALIGNED_LE, nameOffset + ((long) word << 3)));
+            }
+            hash = CalculateAverage_robjk.Worker.mixHash(hash, inputs.lastNameWords[i]);
+            total += CalculateAverage_robjk.Worker.foldHash(hash);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public CalculateAverage_robjk.LinearProbingHashMap processChunk() {
+        // scan, hash, decode and merge - the map is reused, so after the first invocation every record is a hit
+        worker.sourceOffset = 0;
+        worker.maxOffset = inputs.records.byteSize() - StationInputs.PADDING;
+        worker.processChunk();
+        return worker.stationResults;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public CalculateAverage_robjk.LinearProbingHashMap processChunkVector() {
+        // as processChunk, through VectorWorker's vector ';' search and name compare
+        if (vectorWorker == null) {
+            // rather than benchmark an emulation
+            throw new UnsupportedOperationException("vector width not supported by this hardware");
+        }
+        vectorWorker.sourceOffset = 0;
+        vectorWorker.maxOffset = inputs.records.byteSize() - StationInputs.PADDING;
+        vectorWorker.processChunk();
+        return vectorWorker.stationResults;
+    }
+}
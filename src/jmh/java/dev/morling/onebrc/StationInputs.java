@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static dev.morling.onebrc.CalculateAverage_robjk.LONG_UNALIGNED_LE;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * A block of measurements.txt style records for the benchmarks, with the offsets of each record's name and measurement
+ * so a benchmark can exercise a single primitive without re-scanning.
+ * <p>
+ * Station names come from data/weather_stations.csv (override with -Drobjk.stations=path, relative to where the
+ * benchmarks are run from):
+ * <ul>
+ * <li>realistic - 10k distinct stations picked at random, measurements drawn as {@link CreateMeasurements} does</li>
+ * <li>adversarial - 10k distinct 100 byte names sharing their first 96 bytes (every name compare and hash has to walk
+ * all 13 words to tell them apart), with multi-byte UTF-8 and bytes either side of ';' in the shared prefix</li>
+ * </ul>
+ * The block is padded as the tail staging in {@link CalculateAverage_robjk} is, so any record can be read a word (or
+ * vector) at a time.
+ */
+final class StationInputs {
+    static final int STATION_COUNT = 10_000;
+    static final int PADDING = 64;
+
+    final MemorySegment records;
+    final long[] nameOffsets;
+    final int[] nameLengths;
+    final long[] lastNameWords;
+    final int[] hashes;
+    final long[] measurementOffsets;
+    final int[] measurements;
+
+    private StationInputs(byte[] bytes, int recordCount) {
+        records = Arena.ofAuto().allocate(bytes.length + PADDING);
+        MemorySegment.copy(bytes, 0, records, JAVA_BYTE, 0, bytes.length);
+
+        nameOffsets = new long[recordCount];
+        nameLengths = new int[recordCount];
+        lastNameWords = new long[recordCount];
+        hashes = new int[recordCount];
+        measurementOffsets = new long[recordCount];
+        measurements = new int[recordCount];
+
+        long offset = 0;
+        for (int i = 0; i < recordCount; i++) {
+            long nameOffset = offset;
+            while (bytes[(int) offset] != ';') {
+                offset++;
+            }
+            int nameLength = (int) (offset - nameOffset);
+
+            // hash exactly as the worker does, a word at a time with the final word masked to the name bytes
+            long hash = 0;
+            for (int word = 0; word < nameLength >>> 3; word++) {
+                long nameWord = records.get(LONG_UNALIGNED_LE, nameOffset + ((long) word << 3));
+                hash = CalculateAverage_robjk.Worker.mixHash(hash, nameWord);
+            }
+            long lastWord = records.get(LONG_UNALIGNED_LE, nameOffset + (nameLength & ~7))
+                    & CalculateAverage_robjk.Worker.partialWordMask(nameLength & 7);
+            hash = CalculateAverage_robjk.Worker.mixHash(hash, lastWord);
+
+            nameOffsets[i] = nameOffset;
+            nameLengths[i] = nameLength;
+            lastNameWords[i] = lastWord;
+            hashes[i] = CalculateAverage_robjk.Worker.foldHash(hash);
+
+            offset++;
+            measurementOffsets[i] = offset;
+            int measurementStart = (int) offset;
+            while (bytes[(int) offset] != '\n') {
+                offset++;
+            }
+            measurements[i] = parseTenths(bytes, measurementStart, (int) offset);
+            offset++;
+        }
+    }
+
+    static StationInputs create(String shape, int recordCount) {
+        List<String> stations = switch (shape) {
+            case "realistic" -> realisticNames();
+            case "adversarial" -> adversarialNames();
+            default -> throw new IllegalArgumentException("unknown input shape " + shape);
+        };
+
+        Random random = new Random(42);
+        double[] means = new double[stations.size()];
+        for (int i = 0; i < means.length; i++) {
+            means[i] = random.nextDouble(-10, 30);
+        }
+
+        StringBuilder builder = new StringBuilder(recordCount * 24);
+        for (int i = 0; i < recordCount; i++) {
+            int station = random.nextInt(stations.size());
+            double measurement = Math.max(-99.9, Math.min(99.9, random.nextGaussian(means[station], 10)));
+            builder.append(stations.get(station)).append(';').append(Math.round(measurement * 10.0) / 10.0).append('\n');
+        }
+
+        return new StationInputs(builder.toString().getBytes(StandardCharsets.UTF_8), recordCount);
+    }
+
+    private static List<String> realisticNames() {
+        List<String> names = new ArrayList<>(csvNames());
+        Collections.shuffle(names, new Random(7));
+        return names.subList(0, Math.min(STATION_COUNT, names.size()));
+    }
+
+    private static List<String> adversarialNames() {
+        // the longest names in the file, run together with a few awkward bytes: '»' is 0xc2 0xbb, ':' and '<' are
+        // either side of ';'
+        List<String> longest = new ArrayList<>(csvNames());
+        longest.sort((a, b) -> Integer.compare(b.length(), a.length()));
+
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; utf8Length(prefix) < 96; i++) {
+            prefix.append(longest.get(i)).append(" »:<");
+        }
+        while (utf8Length(prefix) > 96) {
+            prefix.setLength(prefix.length() - 1);
+        }
+        while (utf8Length(prefix) < 96) {
+            prefix.append(':');
+        }
+
+        List<String> names = new ArrayList<>(STATION_COUNT);
+        for (int i = 0; i < STATION_COUNT; i++) {
+            // 4 distinguishing ascii bytes, so every name is exactly 100 bytes
+            names.add(prefix + "%4s".formatted(Integer.toString(i, 36)).replace(' ', '0'));
+        }
+        return names;
+    }
+
+    private static List<String> csvNames() {
+        Path path = Path.of(System.getProperty("robjk.stations", "data/weather_stations.csv"));
+        try (var lines = Files.lines(path)) {
+            return lines.filter(line -> !line.startsWith("#"))
+                    .map(line -> line.substring(0, line.indexOf(';')))
+                    .distinct()
+                    .toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int utf8Length(CharSequence chars) {
+        return chars.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static int parseTenths(byte[] bytes, int from, int to) {
+        boolean negative = bytes[from] == '-';
+        int value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            if (bytes[i] != '.') {
+                value = value * 10 + (bytes[i] - '0');
+            }
+        }
+        return negative ? -value : value;
+    }
+}
@@ -62,7 +62,7 @@ public class CalculateAverage_baseline {
         // .collect(toMap(e -> e.getKey(), e -> Math.round(e.getValue() * 10.0) / 10.0)));
         // System.out.println(measurements1);
 
-        CalculateAverage_rjk.Timer timer = new CalculateAverage_rjk.Timer();
+        Timer timer = new Timer();
 
         Collector<Measurement, MeasurementAggregator, ResultRow> collector = Collector.of(
                 MeasurementAggregator::new,
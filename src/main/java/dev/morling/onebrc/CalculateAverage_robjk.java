@@ -1,25 +1,72 @@
 package dev.morling.onebrc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.net.ExtendedSocketOptions;
 
 import static java.lang.foreign.ValueLayout.JAVA_BYTE;
-import static java.lang.foreign.ValueLayout.JAVA_INT_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
 import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static jdk.incubator.vector.VectorOperators.EQ;
+import static jdk.incubator.vector.VectorOperators.NE;
 
 // Total elapsed times are not rigorous, methodology is to run repeatedly on a Windows machine and take somewhere
 // in the middle of the range for the table below.  The variation in timings over repeated runs is now at the stage
@@ -42,436 +89,1767 @@ import static java.nio.ByteOrder.LITTLE_ENDIAN;
 // Eighth         :  3,733              (4-byte station reading + bit hackery)
 public class CalculateAverage_robjk {
 
-    // restrict to 3/4 of the cores on my test machine
-    public static final int THREAD_COUNT = 8;
+    // defaults to every available core, override with -Drobjk.workers=n (e.g. 8 to restrict to 3/4 of the cores on
+    // my test machine)
+    public static final int WORKER_COUNT = Integer.getInteger("robjk.workers", Runtime.getRuntime().availableProcessors());
+
+    // small enough that a slow worker only holds up a couple of MB at the end of the run, large enough that contention
+    // on the shared cursor is irrelevant. Override with -Drobjk.chunkSize=bytes
+    public static final long CHUNK_SIZE = Long.getLong("robjk.chunkSize", 2 * 1024 * 1024);
+
+    // vector or scalar station name scanning, override with -Drobjk.scanner=vector|scalar. By default vectors are used
+    // when the JVM was started with --add-modules jdk.incubator.vector and the hardware supports the vector width
+    public static final String SCANNER = System.getProperty("robjk.scanner", "auto");
+
+    // timings printed after the results: -Drobjk.phases=summary (per phase), detail (plus every worker and merge) or
+    // off. -Drobjk.phasesCsv=path additionally exports every timed interval
+    public static final String PHASES = System.getProperty("robjk.phases", "summary");
+    public static final String PHASES_CSV = System.getProperty("robjk.phasesCsv");
+
+    // custom JFR events for every worker, chunk and merge, -Drobjk.jfr=true along with -XX:StartFlightRecording to
+    // record them. Static final so when off the JIT drops the event code altogether
+    public static final boolean JFR_EVENTS = Boolean.getBoolean("robjk.jfr");
+
+    // probe statistics for the station map printed after the results, -Drobjk.mapStats=true. Static final as above,
+    // the counting disappears from the hot path when off
+    public static final boolean MAP_STATS = Boolean.getBoolean("robjk.mapStats");
+
+    // the .truth file CreateMeasurements wrote along with the input, -Drobjk.truth=path, to check the results against
+    // it rather than the output expected for the original billion rows
+    public static final String TRUTH = System.getProperty("robjk.truth");
+
+    // aggregate a file converted by ColumnarFormat instead of the default input, -Drobjk.columnar=path. Any input that
+    // turns out to be columnar is aggregated as such, this only changes the default
+    public static final String COLUMNAR = System.getProperty("robjk.columnar");
+
+    // results kept next to the input and reused while it's unchanged, -Drobjk.cache=true, see ResultCache
+    public static final boolean CACHE = Boolean.getBoolean("robjk.cache");
+
+    // only what's been appended since the last run is parsed, -Drobjk.checkpoint=true, see Checkpoint
+    public static final boolean CHECKPOINT = Boolean.getBoolean("robjk.checkpoint");
+
+    // when no input is given on the command line
+    private static final String DEFAULT_INPUT = "D:\\development\\workspace\\1brc\\measurements.txt";
 
     private static final String GUNNAR_OUTPUT = "{Abha=-29.8/18.0/68.1, Abidjan=-27.7/26.0/72.8, Abéché=-18.9/29.4/77.9, Accra=-20.4/26.4/77.9, Addis Ababa=-36.7/16.0/64.6, Adelaide=-30.6/17.3/65.3, Aden=-19.7/29.1/76.9, Ahvaz=-25.9/25.4/72.4, Albuquerque=-39.0/14.0/61.3, Alexandra=-36.6/11.0/61.1, Alexandria=-28.8/20.0/69.0, Algiers=-28.8/18.2/67.8, Alice Springs=-27.1/21.0/67.3, Almaty=-41.9/10.0/62.2, Amsterdam=-40.9/10.2/59.2, Anadyr=-57.8/-6.9/48.1, Anchorage=-46.7/2.8/52.4, Andorra la Vella=-41.3/9.8/60.4, Ankara=-39.3/12.0/62.3, Antananarivo=-33.9/17.9/68.6, Antsiranana=-26.0/25.2/74.1, Arkhangelsk=-49.1/1.3/51.9, Ashgabat=-31.5/17.1/66.2, Asmara=-31.4/15.6/69.0, Assab=-19.9/30.5/83.5, Astana=-47.2/3.5/55.1, Athens=-31.2/19.2/66.8, Atlanta=-29.3/17.0/65.2, Auckland=-32.3/15.2/63.7, Austin=-28.7/20.7/69.4, Baghdad=-35.5/22.8/77.3, Baguio=-30.5/19.5/68.8, Baku=-34.1/15.1/65.9, Baltimore=-34.5/13.1/63.6, Bamako=-23.9/27.8/81.4, Bangkok=-23.7/28.6/77.0, Bangui=-24.2/26.0/79.3, Banjul=-23.1/26.0/77.9, Barcelona=-31.0/18.2/67.4, Bata=-25.1/25.1/75.2, Batumi=-32.9/14.0/64.8, Beijing=-40.0/12.9/60.1, Beirut=-28.3/20.9/72.3, Belgrade=-41.8/12.5/67.4, Belize City=-23.8/26.7/77.5, Benghazi=-32.4/19.9/72.6, Bergen=-42.9/7.7/55.0, Berlin=-39.2/10.3/59.7, Bilbao=-36.1/14.7/61.8, Birao=-24.7/26.5/78.2, Bishkek=-43.8/11.3/62.2, Bissau=-20.8/27.0/74.1, Blantyre=-33.6/22.2/74.6, Bloemfontein=-35.3/15.6/63.2, Boise=-37.3/11.4/60.3, Bordeaux=-35.5/14.2/63.6, Bosaso=-23.9/30.0/82.2, Boston=-42.2/10.9/59.1, Bouaké=-24.7/26.0/74.8, Bratislava=-37.0/10.5/60.7, Brazzaville=-25.5/25.0/75.4, Bridgetown=-23.1/27.0/73.5, Brisbane=-28.6/21.4/73.5, Brussels=-38.0/10.5/61.6, Bucharest=-40.7/10.8/61.3, Budapest=-40.4/11.3/64.6, Bujumbura=-26.1/23.8/78.1, Bulawayo=-37.3/18.9/70.3, Burnie=-40.0/13.1/58.7, Busan=-37.2/15.0/65.5, Cabo San Lucas=-25.4/23.9/72.1, Cairns=-24.4/25.0/71.7, Cairo=-31.9/21.4/70.5, Calgary=-43.5/4.4/54.9, Canberra=-36.0/13.1/69.1, Cape Town=-33.4/16.2/65.5, Changsha=-28.5/17.4/67.3, Charlotte=-32.8/16.1/68.0, Chiang Mai=-26.3/25.8/75.6, Chicago=-47.0/9.8/61.2, Chihuahua=-31.5/18.6/67.4, Chittagong=-25.0/25.9/82.9, Chișinău=-38.3/10.2/58.6, Chongqing=-30.4/18.6/70.2, Christchurch=-45.1/12.2/62.4, City of San Marino=-36.8/11.8/61.0, Colombo=-19.8/27.4/76.8, Columbus=-37.3/11.7/61.4, Conakry=-21.9/26.4/87.1, Copenhagen=-43.9/9.1/58.4, Cotonou=-22.3/27.2/77.6, Cracow=-39.6/9.3/61.2, Da Lat=-31.1/17.9/71.5, Da Nang=-21.7/25.8/72.8, Dakar=-24.4/24.0/71.4, Dallas=-34.6/19.0/69.5, Damascus=-33.3/17.0/68.3, Dampier=-26.8/26.4/75.6, Dar es Salaam=-29.2/25.8/73.4, Darwin=-19.7/27.6/76.0, Denpasar=-27.7/23.7/77.4, Denver=-40.9/10.4/59.0, Detroit=-39.1/10.0/58.1, Dhaka=-23.0/25.9/74.7, Dikson=-59.6/-11.1/38.6, Dili=-26.0/26.6/74.5, Djibouti=-18.4/29.9/77.0, Dodoma=-26.4/22.7/73.7, Dolisie=-22.9/24.0/76.8, Douala=-23.0/26.7/77.2, Dubai=-19.4/26.9/76.1, Dublin=-39.1/9.8/61.4, Dunedin=-37.9/11.1/60.5, Durban=-28.3/20.6/76.9, Dushanbe=-41.0/14.7/68.5, Edinburgh=-42.9/9.3/62.6, Edmonton=-42.8/4.2/52.7, El Paso=-30.9/18.1/66.8, Entebbe=-27.8/21.0/71.4, Erbil=-31.9/19.5/68.4, Erzurum=-45.5/5.1/55.8, Fairbanks=-56.3/-2.3/46.5, Fianarantsoa=-28.7/17.9/70.1, Flores,  Petén=-21.7/26.4/78.4, Frankfurt=-39.2/10.6/60.8, Fresno=-33.9/17.9/77.2, Fukuoka=-32.7/17.0/68.9, Gaborone=-27.6/21.0/71.2, Gabès=-31.3/19.5/67.0, Gagnoa=-23.2/26.0/75.2, Gangtok=-39.3/15.2/68.5, Garissa=-17.7/29.3/81.4, Garoua=-21.2/28.3/80.3, George Town=-20.6/27.9/77.0, Ghanzi=-25.5/21.4/68.7, Gjoa Haven=-66.6/-14.4/37.0, Guadalajara=-29.6/20.9/68.6, Guangzhou=-30.9/22.4/70.9, Guatemala City=-28.5/20.4/69.1, Halifax=-39.5/7.5/57.7, Hamburg=-40.1/9.7/59.8, Hamilton=-45.6/13.8/66.8, Hanga Roa=-29.2/20.5/69.4, Hanoi=-25.9/23.6/75.3, Harare=-30.2/18.4/73.6, Harbin=-45.7/5.0/54.7, Hargeisa=-27.0/21.7/72.3, Hat Yai=-26.4/27.0/77.9, Havana=-22.7/25.2/77.3, Helsinki=-42.6/5.9/58.7, Heraklion=-34.5/18.9/69.0, Hiroshima=-32.3/16.3/68.6, Ho Chi Minh City=-22.0/27.4/84.1, Hobart=-35.4/12.7/62.0, Hong Kong=-23.6/23.3/74.4, Honiara=-20.8/26.5/77.3, Honolulu=-22.7/25.4/75.0, Houston=-29.7/20.8/76.2, Ifrane=-36.6/11.4/63.9, Indianapolis=-41.1/11.8/60.4, Iqaluit=-59.5/-9.3/43.1, Irkutsk=-48.0/1.0/51.8, Istanbul=-40.8/13.9/65.0, Jacksonville=-35.4/20.3/68.9, Jakarta=-25.4/26.7/75.5, Jayapura=-19.6/27.0/75.4, Jerusalem=-29.2/18.3/67.6, Johannesburg=-33.8/15.5/68.7, Jos=-26.1/22.8/73.1, Juba=-21.6/27.8/82.3, Kabul=-36.4/12.1/66.1, Kampala=-29.2/20.0/71.2, Kandi=-20.3/27.7/78.8, Kankan=-22.3/26.5/82.9, Kano=-28.7/26.4/77.3, Kansas City=-36.1/12.5/60.0, Karachi=-23.5/26.0/76.6, Karonga=-25.7/24.4/73.0, Kathmandu=-30.3/18.3/66.7, Khartoum=-18.7/29.9/80.0, Kingston=-20.4/27.4/77.4, Kinshasa=-21.4/25.3/73.1, Kolkata=-22.1/26.7/75.2, Kuala Lumpur=-20.5/27.3/76.1, Kumasi=-22.7/26.0/75.4, Kunming=-31.8/15.7/67.8, Kuopio=-47.6/3.4/53.2, Kuwait City=-23.4/25.7/79.2, Kyiv=-42.7/8.4/58.3, Kyoto=-34.4/15.8/62.5, La Ceiba=-26.4/26.2/77.2, La Paz=-31.9/23.7/72.3, Lagos=-21.7/26.8/77.7, Lahore=-31.9/24.3/73.5, Lake Havasu City=-31.7/23.7/74.1, Lake Tekapo=-37.6/8.7/59.6, Las Palmas de Gran Canaria=-28.3/21.2/68.3, Las Vegas=-28.6/20.3/70.1, Launceston=-40.4/13.1/60.1, Lhasa=-42.0/7.6/64.0, Libreville=-22.0/25.9/71.4, Lisbon=-33.9/17.5/64.0, Livingstone=-26.2/21.8/73.9, Ljubljana=-39.3/10.9/59.0, Lodwar=-17.6/29.3/79.0, Lomé=-24.3/26.9/75.9, London=-46.5/11.3/60.2, Los Angeles=-35.9/18.6/67.1, Louisville=-39.3/13.9/63.2, Luanda=-23.3/25.8/77.1, Lubumbashi=-30.5/20.8/69.7, Lusaka=-28.6/19.9/74.8, Luxembourg City=-43.2/9.3/57.2, Lviv=-48.6/7.8/57.6, Lyon=-43.9/12.5/60.9, Madrid=-37.2/15.0/65.5, Mahajanga=-25.4/26.3/77.6, Makassar=-27.5/26.7/78.6, Makurdi=-21.2/26.0/73.7, Malabo=-21.9/26.3/79.9, Malé=-24.8/28.0/75.9, Managua=-22.4/27.3/75.8, Manama=-23.9/26.5/79.6, Mandalay=-24.8/28.0/79.3, Mango=-21.0/28.1/79.0, Manila=-26.1/28.4/83.6, Maputo=-28.5/22.8/73.8, Marrakesh=-31.4/19.6/79.7, Marseille=-39.5/15.8/64.1, Maun=-28.3/22.4/70.6, Medan=-22.7/26.5/80.3, Mek'ele=-27.9/22.7/71.0, Melbourne=-39.0/15.1/63.7, Memphis=-33.5/17.2/66.5, Mexicali=-26.3/23.1/76.8, Mexico City=-32.8/17.5/67.0, Miami=-21.3/24.9/77.9, Milan=-42.4/13.0/63.2, Milwaukee=-39.5/8.9/57.2, Minneapolis=-46.2/7.8/59.7, Minsk=-47.7/6.7/55.8, Mogadishu=-24.2/27.1/81.7, Mombasa=-22.6/26.3/75.6, Monaco=-32.1/16.4/65.8, Moncton=-45.5/6.1/57.4, Monterrey=-27.5/22.3/75.5, Montreal=-42.5/6.8/58.2, Moscow=-43.7/5.8/55.8, Mumbai=-25.7/27.1/76.0, Murmansk=-50.0/0.6/47.4, Muscat=-23.0/28.0/76.3, Mzuzu=-31.0/17.7/67.0, N'Djamena=-20.4/28.3/83.6, Naha=-26.1/23.1/74.6, Nairobi=-32.7/17.8/68.0, Nakhon Ratchasima=-24.1/27.3/80.7, Napier=-36.4/14.6/62.3, Napoli=-32.0/15.9/64.4, Nashville=-40.3/15.4/67.0, Nassau=-28.1/24.6/78.0, Ndola=-30.0/20.3/69.5, New Delhi=-28.6/25.0/76.0, New Orleans=-29.2/20.7/76.3, New York City=-38.8/12.9/61.3, Ngaoundéré=-31.1/22.0/70.4, Niamey=-20.4/29.3/82.8, Nicosia=-33.8/19.7/67.6, Niigata=-35.7/13.9/62.1, Nouadhibou=-28.3/21.3/73.7, Nouakchott=-27.0/25.7/75.5, Novosibirsk=-52.6/1.7/56.0, Nuuk=-49.9/-1.4/50.8, Odesa=-37.3/10.7/57.9, Odienné=-23.4/26.0/77.4, Oklahoma City=-34.8/15.9/64.3, Omaha=-39.3/10.6/62.7, Oranjestad=-19.1/28.1/78.2, Oslo=-46.1/5.7/58.9, Ottawa=-46.7/6.6/55.1, Ouagadougou=-24.3/28.3/78.4, Ouahigouya=-21.5/28.6/76.1, Ouarzazate=-31.5/18.9/71.7, Oulu=-48.9/2.7/52.5, Palembang=-23.5/27.3/80.8, Palermo=-27.9/18.5/70.2, Palm Springs=-25.3/24.5/78.3, Palmerston North=-36.0/13.2/64.3, Panama City=-22.4/28.0/76.3, Parakou=-28.1/26.8/76.9, Paris=-39.2/12.3/65.9, Perth=-29.8/18.7/66.3, Petropavlovsk-Kamchatsky=-49.8/1.9/49.3, Philadelphia=-35.6/13.2/60.4, Phnom Penh=-22.5/28.3/81.6, Phoenix=-24.0/23.9/74.1, Pittsburgh=-37.5/10.8/59.8, Podgorica=-35.9/15.3/65.4, Pointe-Noire=-22.4/26.1/72.1, Pontianak=-29.8/27.7/79.8, Port Moresby=-22.4/26.9/72.7, Port Sudan=-20.3/28.4/79.8, Port Vila=-22.5/24.3/75.1, Port-Gentil=-26.9/26.0/77.7, Portland (OR)=-39.0/12.4/62.6, Porto=-31.2/15.7/63.2, Prague=-42.6/8.4/61.0, Praia=-26.1/24.4/70.9, Pretoria=-28.9/18.2/67.5, Pyongyang=-38.2/10.8/64.0, Rabat=-30.0/17.2/64.5, Rangpur=-24.2/24.4/72.2, Reggane=-27.1/28.3/75.0, Reykjavík=-42.8/4.3/52.5, Riga=-43.5/6.2/54.1, Riyadh=-24.1/26.0/75.3, Rome=-37.1/15.2/62.9, Roseau=-24.4/26.2/76.3, Rostov-on-Don=-40.2/9.9/60.3, Sacramento=-31.8/16.3/65.6, Saint Petersburg=-45.4/5.8/57.1, Saint-Pierre=-45.6/5.7/55.5, Salt Lake City=-39.4/11.6/67.6, San Antonio=-30.4/20.8/68.8, San Diego=-33.7/17.8/66.6, San Francisco=-34.3/14.6/65.1, San Jose=-30.7/16.4/66.5, San José=-28.9/22.6/74.3, San Juan=-21.4/27.2/77.6, San Salvador=-27.6/23.1/78.6, Sana'a=-27.8/20.0/67.8, Santo Domingo=-23.3/25.9/78.6, Sapporo=-45.2/8.9/64.6, Sarajevo=-37.6/10.1/56.9, Saskatoon=-52.4/3.3/50.7, Seattle=-42.5/11.3/64.1, Seoul=-35.3/12.5/66.7, Seville=-30.9/19.2/76.7, Shanghai=-38.5/16.7/68.0, Singapore=-27.1/27.0/79.2, Skopje=-33.8/12.4/62.7, Sochi=-40.5/14.2/69.1, Sofia=-38.7/10.6/61.6, Sokoto=-25.7/28.0/74.4, Split=-42.3/16.1/64.1, St. John's=-44.9/5.0/56.8, St. Louis=-34.5/13.9/66.1, Stockholm=-44.2/6.6/54.5, Surabaya=-26.5/27.1/75.0, Suva=-25.0/25.6/74.9, Suwałki=-41.4/7.2/59.2, Sydney=-34.8/17.7/73.4, Ségou=-26.1/28.0/79.4, Tabora=-26.4/23.0/72.9, Tabriz=-37.3/12.6/62.8, Taipei=-29.6/23.0/70.7, Tallinn=-42.8/6.4/55.2, Tamale=-22.3/27.9/77.4, Tamanrasset=-32.1/21.7/69.8, Tampa=-28.8/22.9/74.5, Tashkent=-32.0/14.8/62.8, Tauranga=-32.8/14.8/64.1, Tbilisi=-38.0/12.9/62.7, Tegucigalpa=-27.7/21.7/71.3, Tehran=-32.5/17.0/66.5, Tel Aviv=-28.6/20.0/70.8, Thessaloniki=-34.9/16.0/63.2, Thiès=-24.3/24.0/77.9, Tijuana=-31.1/17.8/69.7, Timbuktu=-23.2/28.0/75.3, Tirana=-35.4/15.2/65.3, Toamasina=-29.2/23.4/75.4, Tokyo=-47.1/15.4/64.6, Toliara=-26.4/24.1/75.2, Toluca=-37.1/12.4/64.8, Toronto=-41.4/9.4/57.6, Tripoli=-29.7/20.0/66.6, Tromsø=-51.2/2.9/51.0, Tucson=-33.3/20.9/73.4, Tunis=-30.7/18.4/72.5, Ulaanbaatar=-49.7/-0.4/58.7, Upington=-30.1/20.4/71.1, Vaduz=-38.7/10.1/59.5, Valencia=-35.0/18.3/69.6, Valletta=-31.1/18.8/68.9, Vancouver=-39.9/10.4/58.8, Veracruz=-23.9/25.4/76.3, Vienna=-36.8/10.4/59.4, Vientiane=-29.9/25.9/77.5, Villahermosa=-29.6/27.1/79.6, Vilnius=-41.5/6.0/56.4, Virginia Beach=-35.5/15.8/65.8, Vladivostok=-43.0/4.9/51.9, Warsaw=-38.5/8.5/59.4, Washington, D.C.=-34.6/14.6/68.6, Wau=-22.2/27.8/75.2, Wellington=-35.7/12.9/59.8, Whitehorse=-51.7/-0.1/50.9, Wichita=-34.9/13.9/61.7, Willemstad=-26.6/28.0/83.4, Winnipeg=-44.2/3.0/55.5, Wrocław=-37.0/9.6/58.6, Xi'an=-38.1/14.1/62.2, Yakutsk=-57.3/-8.8/40.2, Yangon=-24.8/27.5/77.8, Yaoundé=-26.3/23.8/75.2, Yellowknife=-54.8/-4.3/50.3, Yerevan=-34.7/12.4/58.9, Yinchuan=-46.5/9.0/56.4, Zagreb=-40.3/10.7/60.7, Zanzibar City=-27.1/26.0/76.0, Zürich=-41.7/9.3/58.4, Ürümqi=-39.1/7.4/56.6, İzmir=-31.8/17.9/73.0}";
 
-    public static final ValueLayout.OfInt INT_UNALIGNED_LE = JAVA_INT_UNALIGNED.withOrder(LITTLE_ENDIAN);
-    public static final int NEW_LINE_MSB = '\n' << 24;
+    public static final ValueLayout.OfLong LONG_UNALIGNED_LE = JAVA_LONG_UNALIGNED.withOrder(LITTLE_ENDIAN);
 
     public static final int MAP_SIZE = 32768; // chosen to reduce collisions, don't want to overfit to our measurements
-    public static final int POSITION_MASK = MAP_SIZE - 1;
+    // linear probing degrades quickly past half full, the table doubles rather than going beyond this
+    public static final double MAX_LOAD_FACTOR = 0.5;
     public static final int HASH_CONSTANT = 11587;
     public static final int MAX_STATION_NAME_LENGTH = 100;
 
-    private static class StationResult {
-        byte[] bytes;
-        long nameLength;
-        int firstPrefix;
-        int secondPrefix;
-        int hash;
-        int count;
-        int sum;
-        int min;
-        int max;
-
-        public StationResult(byte[] bytes,
-                             int bytesLength,
-                             long nameLength,
-                             int firstPrefix,
-                             int secondPrefix,
-                             int hash,
-                             int measurement) {
-            this.bytes = Arrays.copyOf(bytes, bytesLength);
-            this.nameLength = nameLength;
-            this.firstPrefix = firstPrefix;
-            this.secondPrefix = secondPrefix;
-            this.hash = hash;
-            this.count = 1;
-            this.sum = this.min = this.max = measurement;
-        }
-
-        // only used for display purposes at the end
-        public StationResult(StationResult other) {
-            this.bytes = Arrays.copyOf(other.bytes, other.bytes.length);
-            this.nameLength = other.nameLength;
-            this.firstPrefix = other.firstPrefix;
-            this.secondPrefix = other.secondPrefix;
-            this.hash = other.hash;
-            this.count = other.count;
-            this.sum = other.sum;
-            this.min = other.min;
-            this.max = other.max;
-        }
-
-        public void recordMeasurement(int measurement) {
-            count++;
-            sum += measurement;
-            min = Math.min(min, measurement);
-            max = Math.max(max, measurement);
-        }
-
-        private double round(double value) {
-            return Math.round(value * 10.0) / 10.0;
-        }
-
-        public boolean equals(int otherHash,
-                              long otherNameLength,
-                              int otherFirstPrefix,
-                              int otherSecondPrefix,
-                              byte[] nameBuffer) {
-
-            // prefixes can always be checked, they'll be 0 if the name is not long enough
-            if (hash == otherHash
-                    && nameLength == otherNameLength
-                    && firstPrefix == otherFirstPrefix
-                    && secondPrefix == otherSecondPrefix) {
-
-                for (int i = 0; i < bytes.length; i++) {
-                    if (bytes[i] != nameBuffer[i]) {
-                        return false;
+    /**
+     * Digging out Knuth's Art of Computer Science leads to discussion of a number of hashing algorithms.  The linear
+     * probe looks to be a good fit.  Simple to implement and as long as occupancy is kept low then it's performant.
+     * <p>
+     * The table lives off-heap as a single flat block of fixed size slots, each slot holding everything we know about
+     * a station inline - there are no per-station objects, so a probe is a single (cache-line aligned) memory access
+     * rather than a reference followed by an object followed by a byte[].
+     * <pre>
+     *   0  count            long
+     *   8  sum              long
+     *  16  min              short
+     *  18  max              short
+     *  20  name length      int  (0 = empty slot, station names are never empty)
+     *  24  name             long[13], little endian words as read by the worker, zero padded
+     * </pre>
+     * Count and sum are 64 bit so 10B+ row files can't overflow them, min/max only ever hold -999 to 999. There is no
+     * room left for the hash, it's cheap enough to recompute from the name words on the rare occasions (resize, merging
+     * maps) it's needed, and the hot path rejects a non-matching slot on length or first word just as quickly.
+     * MAP_SIZE slots comfortably holds the 10k stations of the challenge without ever resizing, so the common case
+     * never pays for more than the occupancy count. Inputs with far more distinct stations double the table whenever
+     * it passes {@link #MAX_LOAD_FACTOR}, rather than probe lengths growing without bound (or looping forever once
+     * every slot is taken).
+     */
+    static class LinearProbingHashMap {
+        static final long SLOT_SIZE = 128;
+        static final long CACHE_LINE_SIZE = 64;
+
+        static final long COUNT = 0;
+        static final long SUM = 8;
+        static final long MIN = 16;
+        static final long MAX = 18;
+        static final long NAME_LENGTH = 20;
+        static final long NAME = 24;
+
+        // auto rather than shared, nothing ever closes it so access costs what global did (measured the same), but
+        // unlike global the tables - those outgrown by a resize too - are freed once the map is unreachable, which a
+        // daemon running any number of jobs relies on
+        MemorySegment table;
+        // byte offset mask, slot count is always a power of 2 so (hash * SLOT_SIZE) & slotMask is the home slot
+        long slotMask;
+        private int size;
+        private int resizeThreshold;
+        // only with MAP_STATS
+        final ProbeStats stats = MAP_STATS ? new ProbeStats() : null;
+
+        public LinearProbingHashMap() {
+            allocate(MAP_SIZE);
+        }
+
+        private void allocate(int slotCount) {
+            table = Arena.ofAuto().allocate(slotCount * SLOT_SIZE, CACHE_LINE_SIZE);
+            slotMask = (slotCount - 1) * SLOT_SIZE;
+            resizeThreshold = (int) (slotCount * MAX_LOAD_FACTOR);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param source       where the name was read from, compared in place - the name is never copied until it's
+         *                     inserted
+         * @param lastWord     the word holding the tail of the name (possibly no bytes at all), already masked by the
+         *                     worker, so the slot's zero padding compares equal
+         */
+        public void merge(MemorySegment source,
+                          long nameOffset,
+                          int nameLength,
+                          long lastWord,
+                          int hash,
+                          int measurement) {
+
+            long slot = homeSlot(hash);
+            int probes = 1;
+
+            while (true) {
+                // optimistic assumption that there is already something in the slot
+                if (table.get(JAVA_INT, slot + NAME_LENGTH) == nameLength
+                        && nameEquals(slot, source, nameOffset, nameLength, lastWord)) {
+                    if (MAP_STATS) {
+                        stats.found(probes);
                     }
+                    recordMeasurement(slot, measurement);
+                    return;
                 }
 
-                return true;
+                if (table.get(JAVA_INT, slot + NAME_LENGTH) == 0) {
+                    if (MAP_STATS) {
+                        stats.inserted(probes);
+                    }
+                    // empty slot, create a new entry and we're done
+                    insert(slot, source, nameOffset, nameLength, measurement);
+                    return;
+                }
+
+                if (MAP_STATS && table.get(JAVA_INT, slot + NAME_LENGTH) == nameLength) {
+                    stats.nameMismatch();
+                }
+                // missed, probe the next slot
+                slot = nextSlot(slot);
+                probes++;
             }
+        }
 
-            return false;
+        long homeSlot(int hash) {
+            return (hash * SLOT_SIZE) & slotMask;
         }
 
-        @Override
-        public String toString() {
-            double mean = sum / 10.0 / count;
+        long nextSlot(long slot) {
+            return (slot + SLOT_SIZE) & slotMask;
+        }
+
+        // must be called after every new entry, the new entry may move
+        private void slotFilled() {
+            if (++size > resizeThreshold) {
+                resize();
+            }
+        }
+
+        private void resize() {
+            if (MAP_STATS) {
+                stats.resized();
+            }
+            MemorySegment previous = table;
+            allocate((int) (previous.byteSize() / SLOT_SIZE) << 1);
+
+            // names are unique, so each slot only has to find an empty home in the new table
+            for (long previousSlot = 0; previousSlot < previous.byteSize(); previousSlot += SLOT_SIZE) {
+                if (previous.get(JAVA_INT, previousSlot + NAME_LENGTH) == 0) {
+                    continue;
+                }
+
+                long slot = homeSlot(slotHash(previous, previousSlot));
+                while (table.get(JAVA_INT, slot + NAME_LENGTH) != 0) {
+                    slot = nextSlot(slot);
+                }
+                MemorySegment.copy(previous, previousSlot, table, slot, SLOT_SIZE);
+            }
+        }
+
+        // only the name bytes are copied, the rest of a never used slot is already 0
+        private void insert(long slot, MemorySegment source, long nameOffset, int nameLength, int measurement) {
+            table.set(JAVA_INT, slot + NAME_LENGTH, nameLength);
+            table.set(JAVA_LONG, slot + COUNT, 1);
+            table.set(JAVA_LONG, slot + SUM, measurement);
+            table.set(JAVA_SHORT, slot + MIN, (short) measurement);
+            table.set(JAVA_SHORT, slot + MAX, (short) measurement);
+            MemorySegment.copy(source, nameOffset, table, slot + NAME, nameLength);
+            slotFilled();
+        }
+
+        boolean nameEquals(long slot, MemorySegment source, long nameOffset, int nameLength, long lastWord) {
+            // whole words straight from the source (still in L1 from the ';' scan), then the (possibly empty) masked
+            // final word - unused name bytes in the slot are always 0
+            int fullWords = nameLength >>> 3;
+            for (int i = 0; i < fullWords; i++) {
+                long offset = (long) i << 3;
+                if (table.get(JAVA_LONG, slot + NAME + offset) != source.get(LONG_UNALIGNED_LE, nameOffset + offset)) {
+                    return false;
+                }
+            }
+
+            return table.get(JAVA_LONG, slot + NAME + ((long) fullWords << 3)) == lastWord;
+        }
 
-            return "%s=%.1f/%.1f/%.1f".formatted(stationName(), round(min / 10.0), round(mean), round(max / 10.0));
+        void recordMeasurement(long slot, int measurement) {
+            table.set(JAVA_LONG, slot + COUNT, table.get(JAVA_LONG, slot + COUNT) + 1);
+            table.set(JAVA_LONG, slot + SUM, table.get(JAVA_LONG, slot + SUM) + measurement);
+            table.set(JAVA_SHORT, slot + MIN, (short) Math.min(table.get(JAVA_SHORT, slot + MIN), measurement));
+            table.set(JAVA_SHORT, slot + MAX, (short) Math.max(table.get(JAVA_SHORT, slot + MAX), measurement));
         }
 
-        // lingering around to aid debugging, ultimately will disappear into toString
-        private String stationName() {
-            if (nameLength < 4) {
-                return new String(bytes, StandardCharsets.UTF_8);
+        // the hash isn't stored, rebuilt from the (zero padded) name words exactly as the workers build it
+        static int slotHash(MemorySegment table, long slot) {
+            long hash = 0;
+            int nameLength = table.get(JAVA_INT, slot + NAME_LENGTH);
+            for (int i = 0; i <= nameLength >>> 3; i++) {
+                hash = Worker.mixHash(hash, table.get(JAVA_LONG, slot + NAME + ((long) i << 3)));
+            }
+            return Worker.foldHash(hash);
+        }
+
+        // the following methods are used for final display, not part of the critical execution path
+        public void merge(LinearProbingHashMap otherMap) {
+            if (MAP_STATS) {
+                stats.add(otherMap.stats);
             }
+            MemorySegment other = otherMap.table;
+
+            for (long otherSlot = 0; otherSlot < other.byteSize(); otherSlot += SLOT_SIZE) {
+                int nameLength = other.get(JAVA_INT, otherSlot + NAME_LENGTH);
+                if (nameLength == 0) {
+                    continue;
+                }
 
-            byte[] utf8Bytes = new byte[(int) nameLength];
+                long slot = homeSlot(slotHash(other, otherSlot));
 
-            utf8Bytes[0] = (byte) (firstPrefix & 0xff);
-            utf8Bytes[1] = (byte) (firstPrefix >> 8 & 0xff);
-            utf8Bytes[2] = (byte) (firstPrefix >> 16 & 0xff);
-            utf8Bytes[3] = (byte) (firstPrefix >> 24 & 0xff);
-            int index = 4;
+                while (true) {
+                    int slotNameLength = table.get(JAVA_INT, slot + NAME_LENGTH);
+                    if (slotNameLength == 0) {
+                        // empty slot, copy the other slot wholesale and we're done
+                        MemorySegment.copy(other, otherSlot, table, slot, SLOT_SIZE);
+                        slotFilled();
+                        break;
+                    }
 
-            if (nameLength >= 8) {
-                utf8Bytes[4] = (byte) (secondPrefix & 0xff);
-                utf8Bytes[5] = (byte) (secondPrefix >> 8 & 0xff);
-                utf8Bytes[6] = (byte) (secondPrefix >> 16 & 0xff);
-                utf8Bytes[7] = (byte) (secondPrefix >> 24 & 0xff);
-                index = 8;
+                    if (slotNameLength == nameLength
+                            && MemorySegment.mismatch(table,
+                                    slot + NAME,
+                                    slot + NAME + nameLength,
+                                    other,
+                                    otherSlot + NAME,
+                                    otherSlot + NAME + nameLength) == -1) {
+                        table.set(JAVA_LONG, slot + COUNT, table.get(JAVA_LONG, slot + COUNT) + other.get(JAVA_LONG, otherSlot + COUNT));
+                        table.set(JAVA_LONG, slot + SUM, table.get(JAVA_LONG, slot + SUM) + other.get(JAVA_LONG, otherSlot + SUM));
+                        table.set(JAVA_SHORT, slot + MIN, (short) Math.min(table.get(JAVA_SHORT, slot + MIN), other.get(JAVA_SHORT, otherSlot + MIN)));
+                        table.set(JAVA_SHORT, slot + MAX, (short) Math.max(table.get(JAVA_SHORT, slot + MAX), other.get(JAVA_SHORT, otherSlot + MAX)));
+                        break;
+                    }
+
+                    slot = nextSlot(slot);
+                }
             }
+        }
 
-            if (bytes.length > 0) {
-                System.arraycopy(bytes, 0, utf8Bytes, index, bytes.length);
+        /**
+         * a station's totals aggregated elsewhere (the columnar engine's arrays, or read back by {@link #readFrom}),
+         * the name mustn't be in the map yet
+         */
+        void put(byte[] name, long count, long sum, short min, short max) {
+            // built as a slot of its own first, it's the easiest way to hash the name exactly as slotHash would
+            MemorySegment entry = MemorySegment.ofArray(new long[(int) (SLOT_SIZE / Long.BYTES)]);
+            entry.set(JAVA_LONG, COUNT, count);
+            entry.set(JAVA_LONG, SUM, sum);
+            entry.set(JAVA_SHORT, MIN, min);
+            entry.set(JAVA_SHORT, MAX, max);
+            entry.set(JAVA_INT, NAME_LENGTH, name.length);
+            MemorySegment.copy(name, 0, entry, JAVA_BYTE, NAME, name.length);
+
+            long slot = homeSlot(slotHash(entry, 0));
+            while (table.get(JAVA_INT, slot + NAME_LENGTH) != 0) {
+                slot = nextSlot(slot);
             }
+            MemorySegment.copy(entry, 0, table, slot, SLOT_SIZE);
+            slotFilled();
+        }
 
+        /**
+         * every station's name and totals, compact - an entry is its name plus 20 bytes, not a whole slot
+         */
+        void writeTo(DataOutput out) throws IOException {
+            out.writeInt(size);
+            for (long slot = 0; slot < table.byteSize(); slot += SLOT_SIZE) {
+                int nameLength = table.get(JAVA_INT, slot + NAME_LENGTH);
+                if (nameLength != 0) {
+                    out.writeByte(nameLength);
+                    out.write(table.asSlice(slot + NAME, nameLength).toArray(JAVA_BYTE));
+                    out.writeLong(table.get(JAVA_LONG, slot + COUNT));
+                    out.writeLong(table.get(JAVA_LONG, slot + SUM));
+                    out.writeShort(table.get(JAVA_SHORT, slot + MIN));
+                    out.writeShort(table.get(JAVA_SHORT, slot + MAX));
+                }
+            }
+        }
+
+        static LinearProbingHashMap readFrom(DataInput in) throws IOException {
+            LinearProbingHashMap map = new LinearProbingHashMap();
+            int stations = in.readInt();
+            for (int i = 0; i < stations; i++) {
+                byte[] name = new byte[in.readUnsignedByte()];
+                in.readFully(name);
+                map.put(name, in.readLong(), in.readLong(), in.readShort(), in.readShort());
+            }
+            return map;
+        }
+
+        private String stationName(long slot) {
+            byte[] utf8Bytes = table.asSlice(slot + NAME, table.get(JAVA_INT, slot + NAME_LENGTH)).toArray(JAVA_BYTE);
             return new String(utf8Bytes, StandardCharsets.UTF_8);
         }
-    }
 
-    private static class LinearProbingHashMap {
         /**
-         * Digging out Knuth's Art of Computer Science leads to discussion of a number of hashing algorithms.  The
-         * linear probe looks to be a good fit.  Simple to implement and as long as occupancy is kept low then it's
-         * performant.
+         * @return how far each station sits from its home slot, index 0 being in its home slot
          */
-        StationResult[] table = new StationResult[MAP_SIZE];
+        long[] displacementHistogram() {
+            long[] histogram = new long[ProbeStats.HISTOGRAM_SIZE];
+            long slotCount = table.byteSize() / SLOT_SIZE;
+            for (long slot = 0; slot < table.byteSize(); slot += SLOT_SIZE) {
+                if (table.get(JAVA_INT, slot + NAME_LENGTH) != 0) {
+                    long displacement = ((slot - homeSlot(slotHash(table, slot))) / SLOT_SIZE + slotCount) % slotCount;
+                    histogram[(int) Math.min(displacement, ProbeStats.HISTOGRAM_SIZE - 1)]++;
+                }
+            }
+            return histogram;
+        }
+    }
 
-        public void merge(byte[] bytes,
-                          long nameLength,
-                          int bytesLength,
-                          int firstPrefix,
-                          int secondPrefix,
-                          int hash,
-                          StationResult probedEntry,
-                          int measurement) {
+    /**
+     * What the station map's probing actually costs, for judging {@link #HASH_CONSTANT}, the hash and the table sizing
+     * against real input rather than by eye. Every record is a lookup that either finds its station or inserts it;
+     * probes counts the slots looked at, so 1 is a hit (or insert) on the home slot. A name mismatch is a slot whose
+     * name length matched but whose name didn't - the cases where the length check didn't save the full compare.
+     * <p>
+     * One per worker map, so counting is uncontended, and folded together as the maps are merged.
+     * HashQualityAnalyser scores candidate hashes offline against name sets.
+     */
+    static class ProbeStats {
+        // the last bucket collects everything from there up
+        static final int HISTOGRAM_SIZE = 17;
+
+        private final long[] probeHistogram = new long[HISTOGRAM_SIZE];
+        private long inserts;
+        private long nameMismatches;
+        private int resizes;
+
+        void found(int probes) {
+            probeHistogram[Math.min(probes - 1, HISTOGRAM_SIZE - 1)]++;
+        }
+
+        void inserted(int probes) {
+            found(probes);
+            inserts++;
+        }
+
+        void nameMismatch() {
+            nameMismatches++;
+        }
+
+        void resized() {
+            resizes++;
+        }
 
-            // we tried and found an empty slot before calling in, short-circuit out
-            if (probedEntry == null) {
-                // empty slot, create a new entry and we're done
-                table[hash & POSITION_MASK] = new StationResult(bytes,
-                        bytesLength,
-                        nameLength,
-                        firstPrefix,
-                        secondPrefix,
-                        hash,
-                        measurement);
-                return;
+        void add(ProbeStats other) {
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                probeHistogram[i] += other.probeHistogram[i];
             }
+            inserts += other.inserts;
+            nameMismatches += other.nameMismatches;
+            resizes += other.resizes;
+        }
 
-            // we know the current slot is not null and does not match, so advance to next slot before further probing
-            int position = (hash + 1) & POSITION_MASK;
+        String report(LinearProbingHashMap map) {
+            long slotCount = map.table.byteSize() / LinearProbingHashMap.SLOT_SIZE;
+            long lookups = Arrays.stream(probeHistogram).sum();
+            long probes = 0;
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                probes += (i + 1) * probeHistogram[i];
+            }
 
-            while (true) {
-                StationResult entry = table[position];
+            StringBuilder report = new StringBuilder();
+            report.append("map: %,d stations in %,d slots (%.1f%% occupied), %d resizes across the worker maps%n"
+                    .formatted(map.size(), slotCount, map.size() * 100.0 / slotCount, resizes));
+            report.append("  %,d lookups (%,d inserts): %.2f%% first slot hits, %.3f probes mean%n".formatted(lookups,
+                    inserts, percent(probeHistogram[0], lookups), (double) probes / Math.max(lookups, 1)));
+            report.append("  %,d name compare fall-throughs (length matched, name didn't), %.3f%% of lookups%n"
+                    .formatted(nameMismatches, percent(nameMismatches, lookups)));
+            appendHistogram(report, "probes per lookup", probeHistogram, lookups, 1);
+            appendHistogram(report, "stations by distance from home slot", map.displacementHistogram(), map.size(), 0);
+            return report.toString();
+        }
 
-                // optimistic assumption that there is already something in the slot
-                if (entry != null && entry.equals(hash, nameLength, firstPrefix, secondPrefix, bytes)) {
-                    entry.recordMeasurement(measurement);
-                    return;
+        private static void appendHistogram(StringBuilder report, String title, long[] histogram, long total,
+                                            int first) {
+            report.append("  ").append(title).append('\n');
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] != 0) {
+                    String bucket = (i + first) + (i == histogram.length - 1 ? "+" : "");
+                    report.append("    %4s %,14d %7.3f%%%n".formatted(bucket, histogram[i],
+                            percent(histogram[i], total)));
                 }
+            }
+        }
 
-                if (entry == null) {
-                    // empty slot, create a new entry and we're done
-                    table[position] = new StationResult(bytes,
-                            bytesLength,
-                            nameLength,
-                            firstPrefix,
-                            secondPrefix,
-                            hash,
-                            measurement);
-                    return;
+        private static double percent(long count, long total) {
+            return total == 0 ? 0 : count * 100.0 / total;
+        }
+    }
+
+    /**
+     * Renders the final results as UTF-8 straight into a reusable buffer. Names are decoded once, purely as the sort
+     * key - the expected output is in String order, which isn't quite UTF-8 byte order - and the bytes written are
+     * copied from the slot. Numbers are written as fixed point tenths digit by digit, no String.format and no per
+     * station Strings beyond the key.
+     */
+    private static class ResultWriter {
+        // a 100 byte name, '=', three "-99.9", two '/' and the ", " separator with room to spare
+        private static final int MAX_ENTRY_LENGTH = 128;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        private record SortKey(String name, long slot) {
+        }
+
+        /**
+         * @return "{station=min/mean/max, ...}\n", valid until the next render
+         */
+        public ByteBuffer render(LinearProbingHashMap map, PhaseTimer phases) {
+            long sortStart = phases.now();
+            MemorySegment table = map.table;
+
+            SortKey[] keys = new SortKey[map.size()];
+            int station = 0;
+            for (long slot = 0; slot < table.byteSize(); slot += LinearProbingHashMap.SLOT_SIZE) {
+                if (table.get(JAVA_INT, slot + LinearProbingHashMap.NAME_LENGTH) != 0) {
+                    keys[station++] = new SortKey(map.stationName(slot), slot);
                 }
+            }
+            Arrays.sort(keys, Comparator.comparing(SortKey::name));
+            phases.record("sort", sortStart);
+
+            long formatStart = phases.now();
+            buffer.clear();
+            buffer.put((byte) '{');
+            for (int i = 0; i < keys.length; i++) {
+                if (buffer.remaining() < MAX_ENTRY_LENGTH) {
+                    grow();
+                }
+                if (i > 0) {
+                    buffer.put((byte) ',').put((byte) ' ');
+                }
+                writeStation(table, keys[i].slot());
+            }
+            if (buffer.remaining() < 2) {
+                grow();
+            }
+            buffer.put((byte) '}').put((byte) '\n');
+            phases.record("format", formatStart);
 
-                // missed, probe the next slot
-                position = (position + 1) & POSITION_MASK;
+            return buffer.flip();
+        }
+
+        private void writeStation(MemorySegment table, long slot) {
+            int nameLength = table.get(JAVA_INT, slot + LinearProbingHashMap.NAME_LENGTH);
+            MemorySegment.copy(table, JAVA_BYTE, slot + LinearProbingHashMap.NAME,
+                    buffer.array(), buffer.position(), nameLength);
+            buffer.position(buffer.position() + nameLength);
+
+            long count = table.get(JAVA_LONG, slot + LinearProbingHashMap.COUNT);
+            long sum = table.get(JAVA_LONG, slot + LinearProbingHashMap.SUM);
+            // same double arithmetic as the old "%.1f" of round(mean), so the rounding of .x5 means doesn't change
+            long meanTenths = Math.round(sum / 10.0 / count * 10.0);
+
+            buffer.put((byte) '=');
+            writeTenths(table.get(JAVA_SHORT, slot + LinearProbingHashMap.MIN));
+            buffer.put((byte) '/');
+            writeTenths(meanTenths);
+            buffer.put((byte) '/');
+            writeTenths(table.get(JAVA_SHORT, slot + LinearProbingHashMap.MAX));
+        }
+
+        private void writeTenths(long tenths) {
+            if (tenths < 0) {
+                buffer.put((byte) '-');
+                tenths = -tenths;
+            }
+            // measurements (and so means) are at most 99.9
+            long whole = tenths / 10;
+            if (whole >= 10) {
+                buffer.put((byte) ('0' + whole / 10));
             }
+            buffer.put((byte) ('0' + whole % 10));
+            buffer.put((byte) '.');
+            buffer.put((byte) ('0' + tenths % 10));
         }
 
-        // the following methods are used for final display, not part of the critical execution path
-        public void merge(StationResult update) {
-            int position = update.hash & POSITION_MASK;
+        private void grow() {
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+        }
+    }
 
-            while (true) {
-                StationResult entry = table[position];
-                if (entry == null) {
-                    // empty slot, copy the current station result and we're done
-                    table[position] = new StationResult(update);
-                    return;
-                }
+    /**
+     * Branch free measurement decoding, temperatures are random so the branches on '-' and the number of integer digits
+     * in the previous decoder were mispredicted a good fraction of the time. One word read covers every shape of
+     * measurement (x.y, xx.y, -x.y, -xx.y) plus the trailing '\n'.
+     * <p>
+     * Credit to Quan Anh Mai's 1brc entry for the multiply-and-shift digit combination.
+     */
+    static final class MeasurementDecoder {
+        private MeasurementDecoder() {
+        }
 
-                if (entry.hash == update.hash) {
-                    if (entry.equals(update.hash,
-                            update.nameLength,
-                            update.firstPrefix,
-                            update.secondPrefix,
-                            update.bytes)) {
-                        entry.count += update.count;
-                        entry.sum += update.sum;
-                        entry.min = Math.min(entry.min, update.min);
-                        entry.max = Math.max(entry.max, update.max);
-                        return;
-                    }
-                }
-                position = (position + 1) & POSITION_MASK;
+        /**
+         * @return bit index of the '.' - the only byte in positions 1-3 without bit 4 set ('0'-'9' are 0x30-0x39, '.'
+         * is 0x2e)
+         */
+        static int dotPosition(long word) {
+            return Long.numberOfTrailingZeros(~word & 0x10101000L);
+        }
+
+        /**
+         * @return the number of bytes in the measurement, including the trailing '\n'
+         */
+        static int length(int dotPosition) {
+            return (dotPosition >>> 3) + 3;
+        }
+
+        /**
+         * @return the measurement value * 10
+         */
+        static int decode(long word, int dotPosition) {
+            // all 1s if the first byte is '-' ('-' is 0x2d, the only candidate with bit 4 clear), 0 otherwise
+            long signed = (~word << 59) >> 63;
+            // blank out the '-' so it doesn't pollute the digits
+            long designMask = ~(signed & 0xFF);
+            // align so the digits always land in the same bytes regardless of shape: tens in byte 2, units in byte 3,
+            // tenths in byte 5 (0 if absent)
+            long digits = ((word & designMask) << (28 - dotPosition)) & 0x0F000F0F00L;
+            // a single multiply sums tens * 100 + units * 10 + tenths into bits 32-41
+            long absValue = ((digits * 0x640a0001L) >>> 32) & 0x3FF;
+            return (int) ((absValue ^ signed) - signed);
+        }
+    }
+
+    /**
+     * Hands out fixed size chunks of the source to workers on demand. Rather than each worker being given 1/n of the
+     * file up front, workers keep coming back for more until the file is exhausted, so a slow core (or a burst of page
+     * faults) only delays the chunk it is currently working on rather than 1/n of the whole job.
+     * <p>
+     * The end of the file is the only place a wide read can go out-of-bounds (a chunk boundary always has more of the
+     * mapped file after it), so the last few hundred bytes are copied into a zero padded staging segment and handed out
+     * as a final chunk of their own. Workers can then read a word, or a vector, from any record start without checks.
+     */
+    static class ChunkScheduler {
+        // widest read a worker makes from the start of a record - a 512 bit vector
+        static final long MAX_READ_WIDTH = 64;
+        // comfortably more than the longest record (100 byte name ';' "-xx.y" '\n') plus MAX_READ_WIDTH, so no body
+        // record can read past the end of the file
+        static final long TAIL_SIZE = 256;
+
+        private final AtomicLong cursor = new AtomicLong();
+        private final AtomicBoolean tailClaimed = new AtomicBoolean();
+        private final MemorySegment source;
+        private final long chunkSize;
+        private final long bodyEnd;
+        private final MemorySegment tail;
+
+        public ChunkScheduler(MemorySegment source, long chunkSize) {
+            this.source = source;
+            this.chunkSize = chunkSize;
+            this.bodyEnd = source.byteSize() <= TAIL_SIZE ? 0 : adjustStartOffset(source.byteSize() - TAIL_SIZE, source);
+
+            long tailLength = source.byteSize() - bodyEnd;
+            this.tail = Arena.ofAuto().allocate(tailLength + MAX_READ_WIDTH);
+            MemorySegment.copy(source, bodyEnd, tail, 0, tailLength);
+        }
+
+        /**
+         * @return the (unaligned) start offset of the next unclaimed chunk, or -1 once the body of the source is
+         * exhausted
+         */
+        public long claim() {
+            long chunkStart = cursor.getAndAdd(chunkSize);
+            return chunkStart < bodyEnd ? chunkStart : -1;
+        }
+
+        public long chunkEnd(long chunkStart) {
+            return Math.min(chunkStart + chunkSize, bodyEnd);
+        }
+
+        /**
+         * @return true for exactly one caller, who is then responsible for processing the {@link #tail()}
+         */
+        public boolean claimTail() {
+            return !tailClaimed.getAndSet(true);
+        }
+
+        public MemorySegment tail() {
+            return tail;
+        }
+
+        public long tailLength() {
+            return source.byteSize() - bodyEnd;
+        }
+
+        /**
+         * @return where the {@link #tail()} starts in the source
+         */
+        public long tailOffset() {
+            return bodyEnd;
+        }
+    }
+
+    /**
+     * One worker thread from start to finish, everything it got through. Lined up against its siblings in a recording
+     * this shows who finished late and whether they were handed more or just got through it slower.
+     */
+    @Name("dev.morling.onebrc.robjk.Worker")
+    @Label("Worker")
+    @Category({ "1BRC", "robjk" })
+    @StackTrace(false)
+    static class WorkerEvent extends Event {
+        @Label("Chunks")
+        int chunks;
+        @Label("Rows")
+        long rows;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        static WorkerEvent start() {
+            if (!JFR_EVENTS) {
+                return null;
             }
+            WorkerEvent event = new WorkerEvent();
+            event.begin();
+            return event;
         }
 
-        public void merge(LinearProbingHashMap otherMap) {
-            Arrays.stream(otherMap.table)
-                    .filter(Objects::nonNull)
-                    .forEach(this::merge);
+        void end(int chunks, long rows, long bytes) {
+            this.chunks = chunks;
+            this.rows = rows;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    /**
+     * One chunk claimed from the {@link ChunkScheduler}, by file offset so a slow chunk can be traced back to the part of
+     * the file (page faults, unusually long names) that made it slow. The staged tail is a chunk of its own.
+     */
+    @Name("dev.morling.onebrc.robjk.Chunk")
+    @Label("Chunk")
+    @Category({ "1BRC", "robjk" })
+    @StackTrace(false)
+    static class ChunkEvent extends Event {
+        @Label("Start Offset")
+        long startOffset;
+        @Label("End Offset")
+        long endOffset;
+        @Label("Rows")
+        long rows;
+        @Label("Tail")
+        boolean tail;
+
+        static ChunkEvent start() {
+            if (!JFR_EVENTS) {
+                return null;
+            }
+            ChunkEvent event = new ChunkEvent();
+            event.begin();
+            return event;
+        }
+
+        void end(long startOffset, long endOffset, long rows, boolean tail) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.rows = rows;
+            this.tail = tail;
+            commit();
+        }
+    }
+
+    /**
+     * One pairwise merge in the {@link ResultMerger}, the smaller map folded into the larger.
+     */
+    @Name("dev.morling.onebrc.robjk.Merge")
+    @Label("Map Merge")
+    @Category({ "1BRC", "robjk" })
+    @StackTrace(false)
+    static class MergeEvent extends Event {
+        @Label("Target Stations")
+        int targetStations;
+        @Label("Merged Stations")
+        int mergedStations;
+        @Label("Result Stations")
+        int resultStations;
+
+        static MergeEvent start() {
+            if (!JFR_EVENTS) {
+                return null;
+            }
+            MergeEvent event = new MergeEvent();
+            event.begin();
+            return event;
+        }
+
+        void end(int targetStations, int mergedStations, int resultStations) {
+            this.targetStations = targetStations;
+            this.mergedStations = mergedStations;
+            this.resultStations = resultStations;
+            commit();
+        }
+    }
+
+    /**
+     * Pairwise reduction of the worker maps, done by the workers themselves as they finish rather than by main once
+     * they all have. A finished worker parks its map if nobody else is waiting, otherwise it takes the waiting map,
+     * merges it in place and tries again with the combined result. Each merge removes one map, so whoever makes the
+     * (n-1)th merge holds the final result - with workers finishing at different times merges overlap with the tail of
+     * processing, and with many workers finishing together the merges fan out into a tree across their threads.
+     */
+    private static class ResultMerger {
+        private final int workerCount;
+        private final PhaseTimer phases;
+        private final AtomicReference<LinearProbingHashMap> waiting = new AtomicReference<>();
+        private final AtomicInteger merges = new AtomicInteger();
+
+        public ResultMerger(int workerCount, PhaseTimer phases) {
+            this.workerCount = workerCount;
+            this.phases = phases;
         }
 
-        public String toString() {
-            return "{" +
-                    Arrays.stream(table)
-                            .filter(Objects::nonNull)
-                            .sorted(Comparator.comparing(StationResult::toString))
-                            .map(StationResult::toString)
-                            .collect(Collectors.joining(", "))
-                    + "}";
+        /**
+         * @return the fully merged map if this call completed the reduction, otherwise null
+         */
+        public LinearProbingHashMap offer(LinearProbingHashMap map) {
+            if (workerCount == 1) {
+                return map;
+            }
+
+            while (true) {
+                LinearProbingHashMap other = waiting.getAndSet(null);
+                if (other == null) {
+                    if (waiting.compareAndSet(null, map)) {
+                        // someone still working will pick it up
+                        return null;
+                    }
+                    continue;
+                }
+
+                long mergeStart = phases.now();
+                MergeEvent mergeEvent = MergeEvent.start();
+                // fewer slots to walk merging the smaller into the larger
+                if (other.size() > map.size()) {
+                    LinearProbingHashMap swap = map;
+                    map = other;
+                    other = swap;
+                }
+                int targetStations = map.size();
+                map.merge(other);
+                phases.record("merge", mergeStart);
+                if (mergeEvent != null) {
+                    mergeEvent.end(targetStations, other.size(), map.size());
+                }
+
+                if (merges.incrementAndGet() == workerCount - 1) {
+                    return map;
+                }
+            }
         }
     }
 
     @SuppressWarnings("preview")
-    private static class Worker implements Callable<LinearProbingHashMap> {
+    static class Worker implements Callable<LinearProbingHashMap> {
 
-        private final LinearProbingHashMap stationResults;
-        private final MemorySegment source;
-        private final long maxOffset;
+        protected final LinearProbingHashMap stationResults;
+        private final ChunkScheduler scheduler;
 
-        private long sourceOffset;
+        // the mapped file, or the staging copy of its tail
+        protected MemorySegment source;
+        protected long sourceOffset;
+        protected long maxOffset;
 
-        public Worker(MemorySegment source, long startingOffset, long maxOffset) {
+        // totals for the phase timings, only added to once per chunk
+        protected long rows;
+        protected long bytes;
+
+        public Worker(MemorySegment source, ChunkScheduler scheduler) {
             this.source = source;
-            this.sourceOffset = startingOffset;
-            this.maxOffset = maxOffset;
+            this.scheduler = scheduler;
             this.stationResults = new LinearProbingHashMap();
         }
 
         @Override
         public LinearProbingHashMap call() {
+            WorkerEvent workerEvent = WorkerEvent.start();
+            int chunks = 0;
             try {
-                byte[] bytes = new byte[MAX_STATION_NAME_LENGTH];
-                int bytesIndex = 0;
-                int hash;
-                long stationStart = sourceOffset;
-
-                int firstPrefixWord, secondPrefixWord;
-
-                while (true) {
-                    // annoyingly, the station name could be 1 character so there's a risk if we read a long we'll
-                    // out-of-bounds the final measurement in the file ('a' ';' 'x' '.' 'y' '\n' = 6 bytes)
-                    firstPrefixWord = source.get(JAVA_INT_UNALIGNED, sourceOffset);
-
-                    if (delimiterTrailingZeros(firstPrefixWord) == 32) {
-                        // first prefix is fine, attempt to read the second prefix, cannot OOB on this read
-                        // ';' 'x' '.' 'y' '\n' = 5 bytes
-                        sourceOffset += 4;
-                        hash = (HASH_CONSTANT * firstPrefixWord);
-
-                        secondPrefixWord = source.get(JAVA_INT_UNALIGNED, sourceOffset);
-                        if (delimiterTrailingZeros(secondPrefixWord) == 32) {
-                            // second prefix also fine
-                            sourceOffset += 4;
-                            hash ^= (HASH_CONSTANT * secondPrefixWord);
-                        } else {
-                            secondPrefixWord = 0;
+                long chunkStart;
+                while ((chunkStart = scheduler.claim()) >= 0) {
+                    // a record belongs to the chunk it starts in, the worker on the previous chunk is allowed to read
+                    // into this chunk to finish off a truncated final record
+                    sourceOffset = adjustStartOffset(chunkStart, source);
+                    maxOffset = scheduler.chunkEnd(chunkStart);
+
+                    if (sourceOffset < maxOffset) {
+                        long chunkOffset = sourceOffset;
+                        long chunkRows = rows;
+                        ChunkEvent chunkEvent = ChunkEvent.start();
+                        processChunk();
+                        bytes += sourceOffset - chunkOffset;
+                        chunks++;
+                        if (chunkEvent != null) {
+                            chunkEvent.end(chunkOffset, sourceOffset, rows - chunkRows, false);
                         }
-                    } else {
-                        firstPrefixWord = 0;
-                        secondPrefixWord = 0;
-                        hash = 0;
-                    }
-
-                    // read remainder into the byte[]
-                    while (true) {
-                        byte lastChar = source.get(JAVA_BYTE, sourceOffset++);
-                        if (lastChar == ';') {
-                            break;
-                        }
-
-                        bytes[bytesIndex++] = lastChar;
-                        hash ^= HASH_CONSTANT * lastChar;
-                    }
-
-                    long nameLength = sourceOffset - stationStart - 1;
-
-                    int measurement = extractMeasurement(source);
-
-                    // try a quick lookup, if we get lucky can directly update and continue
-                    StationResult entry = stationResults.table[hash & POSITION_MASK];
-                    if (entry != null && entry.equals(hash,
-                            nameLength,
-                            firstPrefixWord,
-                            secondPrefixWord,
-                            bytes)) {
-                        entry.recordMeasurement(measurement);
-                    } else {
-                        // quick lookup failed, take the slow path
-                        stationResults.merge(bytes,
-                                nameLength,
-                                bytesIndex,
-                                firstPrefixWord,
-                                secondPrefixWord,
-                                hash,
-                                entry,
-                                measurement);
                     }
+                }
 
-                    if (sourceOffset >= maxOffset) {
-                        break;
+                if (scheduler.claimTail()) {
+                    source = scheduler.tail();
+                    sourceOffset = 0;
+                    maxOffset = scheduler.tailLength();
+                    long chunkRows = rows;
+                    ChunkEvent chunkEvent = ChunkEvent.start();
+                    processChunk();
+                    bytes += sourceOffset;
+                    chunks++;
+                    if (chunkEvent != null) {
+                        chunkEvent.end(scheduler.tailOffset(), scheduler.tailOffset() + sourceOffset,
+                                rows - chunkRows, true);
                     }
-
-                    bytesIndex = 0;
-                    stationStart = sourceOffset;
                 }
-            } catch (Exception e) {
+            }
+            catch (Exception e) {
                 System.err.println("failed: " + e);
                 throw new RuntimeException(e);
             }
 
+            if (workerEvent != null) {
+                workerEvent.end(chunks, rows, bytes);
+            }
             return stationResults;
         }
 
+        protected void processChunk() {
+            long chunkRows = 0;
+            while (sourceOffset < maxOffset) {
+                processRecord();
+                chunkRows++;
+            }
+            rows += chunkRows;
+        }
+
+        protected void processRecord() {
+            long stationStart = sourceOffset;
+            long hash = 0;
+
+            // read the name a word at a time until we hit the word containing the ';'
+            long word = wordAt(sourceOffset);
+            int delimiterTrailingZeros = delimiterTrailingZeros(word);
+
+            while (delimiterTrailingZeros == 64) {
+                hash = mixHash(hash, word);
+                sourceOffset += 8;
+
+                word = wordAt(sourceOffset);
+                delimiterTrailingZeros = delimiterTrailingZeros(word);
+            }
+
+            // keep only the bytes preceding the ';' (possibly none at all)
+            int delimiterIndex = delimiterTrailingZeros >>> 3;
+            word &= partialWordMask(delimiterIndex);
+            hash = mixHash(hash, word);
+            sourceOffset += delimiterIndex + 1;
+
+            int nameLength = (int) (sourceOffset - stationStart - 1);
+
+            int measurement = extractMeasurement();
+
+            stationResults.merge(source, stationStart, nameLength, word, foldHash(hash), measurement);
+        }
+
+        protected static long partialWordMask(int byteCount) {
+            return (1L << (byteCount << 3)) - 1;
+        }
+
+        private long wordAt(long offset) {
+            return source.get(LONG_UNALIGNED_LE, offset);
+        }
 
-        private static int delimiterTrailingZeros(int firstPrefixWord) {
+        static int delimiterTrailingZeros(long word) {
             // bit-bashing to hunt for ';'
-            // mask any sign bits (UTF8 chars may have them, ';' does not)
             // xor each byte with ';' -> all existing ';' bytes will now be 0
-            // add the max signed byte value 0x7f to each byte, non-';' bytes will overflow to -ve
-            // invert, only ';' bytes will have their MSB still set
-            // and with a MSB mask to zero out non ';' bytes
-            // only bytes that contained ';' will have their msb set
-            return Integer.numberOfTrailingZeros(-((firstPrefixWord & 0x7f7f7f7f ^ 0x3b3b3b3b) + 0x7f7f7f7f) & 0x80808080);
+            // subtracting 1 from each byte only borrows through the msb of bytes that were 0
+            // and with the inverted word to discard bytes whose msb was already set (UTF8 chars may have them)
+            // the lowest msb left standing marks the first ';', bits above it are not reliable but never needed.
+            // Unlike masking off the sign bits up front this doesn't misfire on UTF8 continuation bytes like 0xbb
+            long match = word ^ 0x3b3b3b3b3b3b3b3bL;
+            return Long.numberOfTrailingZeros((match - 0x0101010101010101L) & ~match & 0x8080808080808080L);
+        }
+
+        // one step of the station hash, per name word - every name word including the (possibly empty) masked last one
+        protected static long mixHash(long hash, long word) {
+            return (hash ^ word) * HASH_CONSTANT;
+        }
+
+        protected static int foldHash(long hash) {
+            // fold the high bits down, the multiply only ever pushes entropy upwards and the map indexes on low bits
+            int folded = (int) (hash ^ (hash >>> 32));
+            return folded ^ (folded >>> 15);
         }
 
         /**
-         * decode the measurement, first check for a '-', then use specialisations to decode the remaining scenarios.
+         * decode the measurement from a single word read, see {@link MeasurementDecoder}
          *
-         * @param source source buffer
          * @return the measurement value * 10, defer dividing by 10 to display logic
          */
-        private int extractMeasurement(MemorySegment source) {
-
-            int negativeMultiplier = 1;
-            // i'm *assuming* a byte read followed by an integer read is not a significant performance hit but this has
-            // not been verified...  You'd expect everything we need would already be in a cache line so it's just the
-            // get overhead we're paying.
-            // Profiling suggests the int read is 1/3rd of the execution time and the byte is 1/6th.
-            // I might return to reading a long and shifting instead later
-            if (source.get(JAVA_BYTE, sourceOffset) == '-') {
-                negativeMultiplier = -1;
-                sourceOffset++;
-            }
-
-            // max possible remaining characters in the measurement is 4 ('x' 'x' '.' 'y' ['\n']), fits in an int
-            int measurementInt = source.get(INT_UNALIGNED_LE, sourceOffset);
-
-            // performing the full decode in a compound statement avoids intervening ISTOREs in the byte code
-            if ((measurementInt & 0xFF000000) == NEW_LINE_MSB) {
-                sourceOffset += 4;
-                // single digit integer components      x.y\n
-                return ((measurementInt & 0xF) * 10
-                        + (measurementInt >> 16 & 0xF))
-                        * negativeMultiplier;
-            } else {
-                sourceOffset += 5;
-                // 2 integer digits     xx.y\n
-                return ((measurementInt & 0xf) * MAX_STATION_NAME_LENGTH
-                        + (measurementInt >> 8 & 0xF) * 10
-                        + (measurementInt >> 24 & 0xF))
-                        * negativeMultiplier;
+        protected int extractMeasurement() {
+            long word = wordAt(sourceOffset);
+            int dotPosition = MeasurementDecoder.dotPosition(word);
+            sourceOffset += MeasurementDecoder.length(dotPosition);
+
+            return MeasurementDecoder.decode(word, dotPosition);
+        }
+    }
+
+    /**
+     * Finds the ';' with a single vector compare rather than a word at a time, and compares station names against the
+     * map a vector at a time. Names at least as long as the vector are handed back to the scalar path - both hash
+     * identically so share the same map entries.
+     * <p>
+     * Only loaded when selected, jdk.incubator.vector has to be explicitly added to the module graph.
+     */
+    static class VectorWorker extends Worker {
+        // 256 bits covers the vast majority of station names in a single compare, -Drobjk.vectorBits=512 on AVX-512
+        // hardware covers nearly all of them. Whether that pays is for RobjkWorkerBenchmark.processChunkVector to
+        // say, run once with each width
+        private static final VectorSpecies<Byte> SPECIES = VectorSpecies.of(byte.class,
+                VectorShape.forBitSize(Integer.getInteger("robjk.vectorBits", 256)));
+
+        private VectorWorker(MemorySegment source, ChunkScheduler scheduler) {
+            super(source, scheduler);
+        }
+
+        static Worker create(MemorySegment source, ChunkScheduler scheduler) {
+            return new VectorWorker(source, scheduler);
+        }
+
+        static boolean isSupported() {
+            // the hardware has to natively support the chosen width (otherwise the vector ops are emulated and slow),
+            // the tail staging has to be padded for it, and the slot has to be able to hold a full vector read from
+            // its name offset
+            return SPECIES.vectorBitSize() <= ByteVector.SPECIES_PREFERRED.vectorBitSize()
+                    && SPECIES.vectorByteSize() <= ChunkScheduler.MAX_READ_WIDTH
+                    && LinearProbingHashMap.NAME + SPECIES.vectorByteSize() <= LinearProbingHashMap.SLOT_SIZE;
+        }
+
+        @Override
+        protected void processChunk() {
+            long chunkRows = 0;
+            while (sourceOffset < maxOffset) {
+                chunkRows++;
+                ByteVector name = ByteVector.fromMemorySegment(SPECIES, source, sourceOffset, LITTLE_ENDIAN);
+                // masks as plain bits, avoids materialising VectorMask objects on the hot path
+                int nameLength = Long.numberOfTrailingZeros(name.compare(EQ, (byte) ';').toLong());
+
+                if (nameLength >= SPECIES.length()) {
+                    // no ';' within the vector, very long name
+                    processRecord();
+                    continue;
+                }
+
+                // the hash still has to be built a word at a time, but the words are already known to be name bytes
+                long stationStart = sourceOffset;
+                long hash = 0;
+                int fullWords = nameLength >>> 3;
+                for (int i = 0; i < fullWords; i++) {
+                    hash = mixHash(hash, source.get(LONG_UNALIGNED_LE, stationStart + ((long) i << 3)));
+                }
+                long lastWord = source.get(LONG_UNALIGNED_LE, stationStart + ((long) fullWords << 3));
+                hash = mixHash(hash, lastWord & partialWordMask(nameLength & 7));
+
+                sourceOffset = stationStart + nameLength + 1;
+
+                int measurement = extractMeasurement();
+
+                merge(name, stationStart, nameLength, foldHash(hash), measurement);
+            }
+            rows += chunkRows;
+        }
+
+        /**
+         * As {@link LinearProbingHashMap#merge(MemorySegment, long, int, long, int, int)} but the name is compared a
+         * whole vector at a time. Lanes beyond the name are ignored, so the slot's zero padding never needs checking.
+         */
+        private void merge(ByteVector name, long stationStart, int nameLength, int hash, int measurement) {
+            long nameBits = nameLength == 64 ? -1L : (1L << nameLength) - 1;
+            // re-read every time, the table is replaced when it resizes
+            MemorySegment table = stationResults.table;
+            long slot = stationResults.homeSlot(hash);
+            int probes = 1;
+
+            while (true) {
+                if (table.get(JAVA_INT, slot + LinearProbingHashMap.NAME_LENGTH) == nameLength
+                        && (name.compare(NE,
+                                ByteVector.fromMemorySegment(SPECIES, table, slot + LinearProbingHashMap.NAME, LITTLE_ENDIAN))
+                                .toLong() & nameBits) == 0) {
+                    if (MAP_STATS) {
+                        stationResults.stats.found(probes);
+                    }
+                    stationResults.recordMeasurement(slot, measurement);
+                    return;
+                }
+
+                if (table.get(JAVA_INT, slot + LinearProbingHashMap.NAME_LENGTH) == 0) {
+                    if (MAP_STATS) {
+                        stationResults.stats.inserted(probes);
+                    }
+                    stationResults.insert(slot, source, stationStart, nameLength, measurement);
+                    return;
+                }
+
+                if (MAP_STATS && table.get(JAVA_INT, slot + LinearProbingHashMap.NAME_LENGTH) == nameLength) {
+                    stationResults.stats.nameMismatch();
+                }
+                slot = stationResults.nextSlot(slot);
+                probes++;
+            }
+        }
+    }
+
+    /**
+     * Aggregates a {@link ColumnarFormat} file - no parsing and no hashing, station ids index straight into arrays of
+     * totals, so the whole job is two sequential streams of shorts. Workers claim CHUNK_SIZE bytes worth of rows (both
+     * columns together) at a time, as the text workers claim chunks, and the arrays are summed once they're all done.
+     */
+    static class ColumnarWorker implements Callable<ColumnarWorker> {
+        private static final int ROW_BYTES = 2 * Short.BYTES;
+        // rows copied out of the mapping at a time, both batches together fit in L1
+        private static final int BATCH_ROWS = 4096;
+
+        private final MemorySegment file;
+        private final ColumnarFormat.Header header;
+        private final AtomicLong nextRow;
+        private final long chunkRows = Math.max(1, CHUNK_SIZE / ROW_BYTES);
+
+        final long[] counts;
+        final long[] sums;
+        final short[] mins;
+        final short[] maxs;
+        long rows;
+
+        // bulk copied out of the mapping, then plain array loops rather than a liveness checked get per value
+        private final short[] stationBatch = new short[BATCH_ROWS];
+        private final short[] measurementBatch = new short[BATCH_ROWS];
+
+        ColumnarWorker(MemorySegment file, ColumnarFormat.Header header, AtomicLong nextRow) {
+            this.file = file;
+            this.header = header;
+            this.nextRow = nextRow;
+            counts = new long[header.stations()];
+            sums = new long[header.stations()];
+            mins = new short[header.stations()];
+            maxs = new short[header.stations()];
+            Arrays.fill(mins, Short.MAX_VALUE);
+            Arrays.fill(maxs, Short.MIN_VALUE);
+        }
+
+        @Override
+        public ColumnarWorker call() {
+            WorkerEvent workerEvent = WorkerEvent.start();
+            int chunks = 0;
+            long ids = header.ids();
+            long temperatures = header.temperatures();
+
+            long first;
+            while ((first = nextRow.getAndAdd(chunkRows)) < header.rows()) {
+                long last = Math.min(first + chunkRows, header.rows());
+                for (long batch = first; batch < last; batch += BATCH_ROWS) {
+                    int batchRows = (int) Math.min(BATCH_ROWS, last - batch);
+                    MemorySegment.copy(file, ColumnarFormat.COLUMN, ids + (batch << 1), stationBatch, 0, batchRows);
+                    MemorySegment.copy(file, ColumnarFormat.COLUMN, temperatures + (batch << 1), measurementBatch, 0,
+                            batchRows);
+                    accumulate(batchRows);
+                }
+                rows += last - first;
+                chunks++;
+            }
+
+            if (workerEvent != null) {
+                workerEvent.end(chunks, rows, rows * ROW_BYTES);
+            }
+            return this;
+        }
+
+        // the whole hot loop - four array updates per row, the station arrays stay in L1 for any sane station count
+        private void accumulate(int batchRows) {
+            for (int i = 0; i < batchRows; i++) {
+                int station = Short.toUnsignedInt(stationBatch[i]);
+                short measurement = measurementBatch[i];
+                counts[station]++;
+                sums[station] += measurement;
+                mins[station] = (short) Math.min(mins[station], measurement);
+                maxs[station] = (short) Math.max(maxs[station], measurement);
             }
         }
+
+        static LinearProbingHashMap aggregate(MemorySegment file, PhaseTimer phases) {
+            ColumnarFormat.Header header = ColumnarFormat.Header.read(file);
+            AtomicLong nextRow = new AtomicLong();
+
+            List<Future<ColumnarWorker>> futures = new ArrayList<>(WORKER_COUNT);
+            for (int i = 0; i < WORKER_COUNT; i++) {
+                ColumnarWorker worker = new ColumnarWorker(file, header, nextRow);
+                var futureTask = new FutureTask<>(() -> {
+                    long scanStart = phases.now();
+                    worker.call();
+                    phases.record("scan", scanStart, worker.rows, worker.rows * ROW_BYTES);
+                    return worker;
+                });
+                new Thread(futureTask, "worker-" + i).start();
+                futures.add(futureTask);
+            }
+
+            List<ColumnarWorker> workers = futures.stream().map(CalculateAverage_robjk::uncheckedGet).toList();
+
+            // the arrays are at most 64k stations, summing them on one thread is nothing next to the scan
+            long mergeStart = phases.now();
+            ColumnarWorker total = workers.getFirst();
+            for (ColumnarWorker worker : workers.subList(1, workers.size())) {
+                for (int station = 0; station < header.stations(); station++) {
+                    total.counts[station] += worker.counts[station];
+                    total.sums[station] += worker.sums[station];
+                    total.mins[station] = (short) Math.min(total.mins[station], worker.mins[station]);
+                    total.maxs[station] = (short) Math.max(total.maxs[station], worker.maxs[station]);
+                }
+            }
+
+            // into the same map the text workers produce, so the results are written (and checked) the same way
+            byte[][] names = header.readDictionary(file);
+            LinearProbingHashMap stationResults = new LinearProbingHashMap();
+            for (int station = 0; station < header.stations(); station++) {
+                if (total.counts[station] > 0) {
+                    stationResults.put(names[station], total.counts[station], total.sums[station], total.mins[station],
+                            total.maxs[station]);
+                }
+            }
+            phases.record("merge", mergeStart);
+            return stationResults;
+        }
     }
 
-    void main() {
-        Timer timer = new Timer();
+    /**
+     * Final per-station totals kept on disk, in a .robjk-cache directory next to the input, so aggregating a file that
+     * hasn't changed since is a small read rather than a scan. Off by default, -Drobjk.cache=true - a benchmark that
+     * hits its cache measures nothing.
+     * <p>
+     * An entry is keyed by the input's real path, size, modification time and a fingerprint of its content, CRC32C
+     * of {@link #FINGERPRINT_SAMPLES} samples spread evenly from the very start to the very end of the file. The
+     * fingerprint catches a rewrite that kept size and modification time (a copy preserving timestamps, touch -r)
+     * without reading the whole file - a change outside every sample that keeps both does get through, that's the
+     * trade. One entry per input, a changed file replaces its entry, and entries are written aside then moved into
+     * place so a concurrent run never reads half of one. Anything unreadable is a miss, and a cache that can't be
+     * written only costs a warning.
+     * <p>
+     * After every store, entries unused for longer than robjk.cacheMaxAge (ISO-8601, default P7D) are deleted, then the
+     * least recently used until the directory is under robjk.cacheMaxBytes (default 256 MB). A hit touches its entry's
+     * modification time, which is what unused and least recently used go by. {@link Checkpoint}s live in the same
+     * directory and are evicted by the same rules, against the same budget.
+     */
+    static final class ResultCache {
+        static final String DIRECTORY = ".robjk-cache";
+        static final int FINGERPRINT_SAMPLES = 64;
+        static final int FINGERPRINT_SAMPLE_SIZE = 4096;
+        private static final String MAGIC = "robjk-cache-1";
+
+        static final Duration MAX_AGE = Duration.parse(System.getProperty("robjk.cacheMaxAge", "P7D"));
+        static final long MAX_BYTES = Long.getLong("robjk.cacheMaxBytes", 256L * 1024 * 1024);
+
+        record Key(Path input, long size, long modifiedNanos, long fingerprint) {
+            Path entry() {
+                return input.resolveSibling(DIRECTORY).resolve(input.getFileName() + ".cache");
+            }
+        }
 
-        Arena offHeap = Arena.global();
+        private ResultCache() {
+        }
 
-        try (FileChannel channel = FileChannel.open(Path.of("D:\\development\\workspace\\1brc\\measurements.txt"), StandardOpenOption.READ)) {
+        static Key key(Path input) throws IOException {
+            Path file = input.toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new Key(file, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    fingerprint(file, attributes.size()));
+        }
 
-            MemorySegment source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), offHeap);
+        /**
+         * @return the cached results, or null if there are none for this exact file
+         */
+        static LinearProbingHashMap lookup(Key key) {
+            Path entry = key.entry();
+            if (!Files.exists(entry)) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+                if (!in.readUTF().equals(MAGIC) || !in.readUTF().equals(key.input().toString())
+                        || in.readLong() != key.size() || in.readLong() != key.modifiedNanos()
+                        || in.readLong() != key.fingerprint()) {
+                    return null;
+                }
+                LinearProbingHashMap results = LinearProbingHashMap.readFrom(in);
+                Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+                return results;
+            }
+            catch (IOException | RuntimeException e) {
+                System.err.println("robjk cache: ignoring unreadable " + entry + ": " + e);
+                return null;
+            }
+        }
 
-            long segmentSize = source.byteSize() / THREAD_COUNT;
-            long startingOffset = 0;
+        static void store(Key key, LinearProbingHashMap results) {
+            Path entry = key.entry();
+            try {
+                replace(entry, out -> {
+                    out.writeUTF(MAGIC);
+                    out.writeUTF(key.input().toString());
+                    out.writeLong(key.size());
+                    out.writeLong(key.modifiedNanos());
+                    out.writeLong(key.fingerprint());
+                    results.writeTo(out);
+                });
+                evict(entry.getParent());
+            }
+            catch (IOException e) {
+                System.err.println("robjk cache: couldn't store " + entry + ": " + e);
+            }
+        }
 
-            Future<LinearProbingHashMap>[] futures = new Future[THREAD_COUNT];
+        interface EntryWriter {
+            void write(DataOutputStream out) throws IOException;
+        }
 
-            for (int i = 0; i < THREAD_COUNT - 1; i++) {
-                long modifiedStart = adjustStartOffset(startingOffset, source);
-                long maxOffset = startingOffset + segmentSize;
+        /**
+         * writes the entry aside and moves it into place, so it's never seen half written
+         */
+        static void replace(Path entry, EntryWriter writer) throws IOException {
+            Files.createDirectories(entry.getParent());
+            Path written = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(written)))) {
+                    writer.write(out);
+                }
+                Files.move(written, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                Files.deleteIfExists(written);
+            }
+        }
+
+        static void evict(Path directory) throws IOException {
+            record Entry(Path path, long bytes, FileTime used) {
+            }
+            List<Entry> entries = new ArrayList<>();
+            try (var files = Files.list(directory)) {
+                for (Path path : files.filter(path -> path.toString().endsWith(".cache")
+                        || path.toString().endsWith(".checkpoint")).toList()) {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    entries.add(new Entry(path, attributes.size(), attributes.lastModifiedTime()));
+                }
+            }
+            entries.sort(Comparator.comparing(Entry::used));
+
+            Instant oldest = Instant.now().minus(MAX_AGE);
+            long bytes = entries.stream().mapToLong(Entry::bytes).sum();
+            for (Entry entry : entries) {
+                if (entry.used().toInstant().isBefore(oldest) || bytes > MAX_BYTES) {
+                    Files.deleteIfExists(entry.path());
+                    bytes -= entry.bytes();
+                }
+            }
+        }
+
+        /**
+         * @return CRC32C of samples of the file's first length bytes
+         */
+        static long fingerprint(Path file, long length) throws IOException {
+            CRC32C crc = new CRC32C();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = Math.min(length, channel.size());
+                int sampleSize = (int) Math.min(FINGERPRINT_SAMPLE_SIZE, size);
+                ByteBuffer sample = ByteBuffer.allocate(sampleSize);
+                // evenly spaced from the start to the end, on a small file they overlap and cover all of it
+                for (int i = 0; i < FINGERPRINT_SAMPLES; i++) {
+                    long position = (size - sampleSize) * i / (FINGERPRINT_SAMPLES - 1);
+                    sample.clear();
+                    while (sample.hasRemaining() && channel.read(sample, position + sample.position()) >= 0) {
+                    }
+                    crc.update(sample.flip());
+                }
+            }
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * Incremental aggregation of a file that's only ever appended to, -Drobjk.checkpoint=true. Each run leaves a
+     * checkpoint in the {@link ResultCache#DIRECTORY} next to the input - the offset just past its last complete line,
+     * a fingerprint of everything before that offset and the per-station totals for it - and the next run maps and
+     * parses only what's been appended since, merging it into the checkpoint's totals. Run time follows the new data
+     * rather than the whole file.
+     * <p>
+     * A line without its '\n' yet may still be being written, so it's left for the run that sees it complete, and
+     * isn't in the results until then. A file that's shorter than its checkpoint or whose fingerprint no longer matches
+     * has been rewritten rather than appended to and is aggregated from the start again, as is a columnar file every
+     * time (they're written once, there's nothing to append to).
+     * <p>
+     * Every run rewrites its checkpoint, and checkpoints age out and count towards the directory's size limit just as
+     * {@link ResultCache} entries do. An evicted checkpoint only means the next run starts from the beginning.
+     */
+    static final class Checkpoint {
+        private static final String MAGIC = "robjk-checkpoint-1";
+
+        private Checkpoint() {
+        }
 
-                futures[i] = startWorker(source, modifiedStart, maxOffset);
-                startingOffset += segmentSize;
+        static LinearProbingHashMap aggregate(Path input, PhaseTimer phases) throws IOException {
+            Path file = input.toRealPath();
+            Path entry = file.resolveSibling(ResultCache.DIRECTORY).resolve(file.getFileName() + ".checkpoint");
+
+            long loadStart = phases.now();
+            long offset = 0;
+            LinearProbingHashMap checkpointed = null;
+            if (Files.exists(entry)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+                    if (in.readUTF().equals(MAGIC) && in.readUTF().equals(file.toString())) {
+                        long checkpointOffset = in.readLong();
+                        long fingerprint = in.readLong();
+                        if (checkpointOffset <= Files.size(file)
+                                && fingerprint == ResultCache.fingerprint(file, checkpointOffset)) {
+                            checkpointed = LinearProbingHashMap.readFrom(in);
+                            offset = checkpointOffset;
+                        }
+                        else {
+                            System.err.println("robjk checkpoint: " + file + " has been rewritten, starting over");
+                        }
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    System.err.println("robjk checkpoint: ignoring unreadable " + entry + ": " + e);
+                }
             }
-            // kick off the final worker
-            futures[THREAD_COUNT - 1] = startWorker(source, adjustStartOffset(startingOffset, source), source.byteSize());
+            phases.record("checkpoint load", loadStart);
 
-            String result = collateResults(futures);
-            System.out.println(result);
+            long mmapStart = phases.now();
+            Arena arena = Arena.ofShared();
+            MemorySegment appended;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                appended = channel.map(FileChannel.MapMode.READ_ONLY, offset, channel.size() - offset, arena);
+            }
+            phases.record("mmap", mmapStart);
+
+            LinearProbingHashMap results;
+            long complete = appended.byteSize();
+            boolean columnar = offset == 0 && ColumnarFormat.isColumnar(appended);
+            if (columnar) {
+                results = CalculateAverage_robjk.aggregate(appended, phases);
+            }
+            else {
+                // up to and including the last '\n', anything after it is a line still being written
+                while (complete > 0 && appended.get(JAVA_BYTE, complete - 1) != '\n') {
+                    complete--;
+                }
+                // nothing new, not even worth starting the workers for
+                results = complete == 0 ? new LinearProbingHashMap()
+                        : CalculateAverage_robjk.aggregate(appended.asSlice(0, complete), phases);
+                if (checkpointed != null) {
+                    long mergeStart = phases.now();
+                    checkpointed.merge(results);
+                    results = checkpointed;
+                    phases.record("checkpoint merge", mergeStart);
+                }
+            }
+
+            long unmapStart = phases.now();
+            arena.close();
+            phases.record("unmap", unmapStart);
+            if (columnar) {
+                return results;
+            }
+
+            long storeStart = phases.now();
+            long end = offset + complete;
+            LinearProbingHashMap totals = results;
+            try {
+                ResultCache.replace(entry, out -> {
+                    out.writeUTF(MAGIC);
+                    out.writeUTF(file.toString());
+                    out.writeLong(end);
+                    out.writeLong(ResultCache.fingerprint(file, end));
+                    totals.writeTo(out);
+                });
+                ResultCache.evict(entry.getParent());
+            }
+            catch (IOException e) {
+                System.err.println("robjk checkpoint: couldn't store " + entry + ": " + e);
+            }
+            phases.record("checkpoint store", storeStart);
+            return results;
+        }
+    }
+
+    /**
+     * Serves aggregation jobs over a Unix domain socket, so a job that's run hundreds of times a day pays for JVM
+     * startup, class loading and JIT warm-up once rather than every time - on a small file those are most of the run.
+     * <p>
+     * One job per connection: the client ({@link RobjkClient}) sends the input's absolute path and a '\n', the daemon
+     * answers with exactly what the command line would print, "{station=min/mean/max, ...}\n", or a line starting
+     * "ERROR " and closes the connection. Jobs run one at a time, each already uses every worker.
+     * <p>
+     * Mappings are kept between jobs, up to {@link #MAPPED_FILES} files, least recently used unmapped first. A file is
+     * only mapped again when its size or modification time changed - appended to or replaced - otherwise a mapping
+     * always sees the file's current content anyway, it's the page cache. A file truncated while a job reads it faults
+     * the read (an InternalError from the JDK rather than a SIGBUS), that job fails and its mapping is dropped.
+     * <p>
+     * A job reads whatever file it names with the daemon's privileges, so only the daemon's own user gets to send one:
+     * the socket is created in a directory only that user can enter (by default a robjk-user directory in the temp
+     * directory, see {@link RobjkClient#SOCKET}) and made owner only itself, and where the platform reports the peer's
+     * credentials every connection from another user is refused before its request is read.
+     */
+    static class Daemon {
+        // -Drobjk.daemonFiles=n
+        static final int MAPPED_FILES = Integer.getInteger("robjk.daemonFiles", 8);
+        private static final int MAX_REQUEST_LENGTH = 4096;
+
+        private record Mapping(Arena arena, MemorySegment source, FileTime modified) {
+        }
+
+        // access order, the eldest entry is the least recently used
+        private final Map<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+        private final ResultWriter writer = new ResultWriter();
+
+        void serve(Path socket) throws IOException {
+            socket = socket.toAbsolutePath();
+            boolean posix = socket.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (posix) {
+                Files.createDirectories(socket.getParent(),
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+            Files.deleteIfExists(socket);
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(socket));
+                UserPrincipal owner = Files.getOwner(socket);
+                if (posix) {
+                    Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+                    // a directory someone else made, perhaps beforehand, is theirs to swap the socket out of
+                    if (!Files.getOwner(socket.getParent()).equals(owner)) {
+                        throw new IOException(socket.getParent() + " isn't owned by " + owner.getName());
+                    }
+                }
+                Path bound = socket;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Files.deleteIfExists(bound);
+                    }
+                    catch (IOException e) {
+                        // going anyway
+                    }
+                }));
+                System.out.println("robjk daemon listening on " + socket);
+
+                while (true) {
+                    try (SocketChannel client = server.accept()) {
+                        if (client.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED)) {
+                            UserPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED).user();
+                            if (!peer.equals(owner)) {
+                                System.out.println("refused a connection from " + peer.getName());
+                                continue;
+                            }
+                        }
+                        ByteBuffer response = respond(readRequest(client));
+                        while (response.hasRemaining()) {
+                            client.write(response);
+                        }
+                    }
+                    catch (IOException e) {
+                        // the client went away, the next one is still welcome
+                        System.out.println("client failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private ByteBuffer respond(String request) {
+            try {
+                Path input = Path.of(request);
+                if (!input.isAbsolute()) {
+                    throw new IllegalArgumentException("not an absolute path: " + request);
+                }
+
+                PhaseTimer phases = new PhaseTimer();
+                ResultCache.Key cacheKey = cacheKey(input, phases);
+                LinearProbingHashMap stationResults = cacheKey == null ? null : cacheLookup(cacheKey, phases);
+                if (stationResults == null) {
+                    if (CHECKPOINT) {
+                        // maps just what's been appended itself, holding on to the whole file would defeat that
+                        stationResults = Checkpoint.aggregate(input, phases);
+                    }
+                    else {
+                        long mmapStart = phases.now();
+                        MemorySegment source = mapping(input);
+                        phases.record("mmap", mmapStart);
+
+                        stationResults = aggregate(source, phases);
+                    }
+                    if (cacheKey != null) {
+                        cacheStore(cacheKey, stationResults, phases);
+                    }
+                }
+                ByteBuffer result = writer.render(stationResults, phases);
+                System.out.printf("%s: %,d stations%n", input, stationResults.size());
+                reportPhases(phases);
+                return result;
+            }
+            catch (IOException | RuntimeException | InternalError e) {
+                // an InternalError is a faulted read, the file shrank under a kept mapping
+                forget(request);
+                System.out.printf("%s: %s%n", request, e);
+                return StandardCharsets.UTF_8.encode("ERROR " + e + "\n");
+            }
+        }
+
+        private void forget(String request) {
+            try {
+                Mapping mapping = mappings.remove(Path.of(request).toRealPath());
+                if (mapping != null) {
+                    mapping.arena().close();
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // never mapped then
+            }
+        }
+
+        private MemorySegment mapping(Path input) throws IOException {
+            Path file = input.toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+            Mapping mapping = mappings.get(file);
+            if (mapping != null && (mapping.source().byteSize() != attributes.size()
+                    || !mapping.modified().equals(attributes.lastModifiedTime()))) {
+                mappings.remove(file);
+                mapping.arena().close();
+                mapping = null;
+            }
+            if (mapping == null) {
+                Arena arena = Arena.ofShared();
+                // the size as mapped, which is what's compared next time
+                mapping = new Mapping(arena, map(file, arena), attributes.lastModifiedTime());
+                mappings.put(file, mapping);
+
+                Iterator<Mapping> eldest = mappings.values().iterator();
+                while (mappings.size() > MAPPED_FILES) {
+                    eldest.next().arena().close();
+                    eldest.remove();
+                }
+            }
+            return mapping.source();
+        }
+
+        private static String readRequest(SocketChannel client) throws IOException {
+            ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+            while (request.hasRemaining() && client.read(request) >= 0) {
+                if (request.get(request.position() - 1) == '\n') {
+                    break;
+                }
+            }
+            return StandardCharsets.UTF_8.decode(request.flip()).toString().strip();
+        }
+    }
+
+    /**
+     * robjk [input], robjk --daemon [socket]
+     */
+    void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            try {
+                new Daemon().serve(args.length > 1 ? Path.of(args[1]) : RobjkClient.SOCKET);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        // the original hard-coded input remains the default, it's what the checked output below is for
+        Path input = Path.of(args.length > 0 ? args[0] : COLUMNAR != null ? COLUMNAR : DEFAULT_INPUT);
+        PhaseTimer phases = new PhaseTimer();
+
+        try {
+            ResultCache.Key cacheKey = cacheKey(input, phases);
+            LinearProbingHashMap stationResults = cacheKey == null ? null : cacheLookup(cacheKey, phases);
+            Arena fileArena = null;
+            if (stationResults == null) {
+                if (CHECKPOINT) {
+                    stationResults = Checkpoint.aggregate(input, phases);
+                }
+                else {
+                    long mmapStart = phases.now();
+                    // shared rather than global so the unmap can be timed along with everything else
+                    fileArena = Arena.ofShared();
+                    MemorySegment source = map(input, fileArena);
+                    phases.record("mmap", mmapStart);
+
+                    stationResults = aggregate(source, phases);
+                }
+                if (cacheKey != null) {
+                    cacheStore(cacheKey, stationResults, phases);
+                }
+            }
+            ByteBuffer result = new ResultWriter().render(stationResults, phases);
+
+            long printStart = phases.now();
+            write(result.duplicate());
+            phases.record("print", printStart);
+
+            // the map copied every name it kept out of the file, nothing refers to it any more
+            if (fileArena != null) {
+                long unmapStart = phases.now();
+                fileArena.close();
+                phases.record("unmap", unmapStart);
+            }
 
             // complete - print elapsed time
-            System.out.printf("\n%s%n", timer);
+            reportPhases(phases);
+            if (MAP_STATS) {
+                System.out.print(stationResults.stats.report(stationResults));
+            }
 
             // verify output is as expected
-            validityCheck(result);
-        } catch (IOException e) {
+            if (TRUTH != null || input.equals(Path.of(DEFAULT_INPUT))) {
+                validityCheck(result);
+            }
+        }
+        catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private static void validityCheck(String result) {
-        // validity checks
-        if (!result.equals(GUNNAR_OUTPUT)) {
+    /**
+     * @return null when the cache is off
+     */
+    private static ResultCache.Key cacheKey(Path input, PhaseTimer phases) throws IOException {
+        if (!CACHE) {
+            return null;
+        }
+        long keyStart = phases.now();
+        ResultCache.Key key = ResultCache.key(input);
+        phases.record("fingerprint", keyStart);
+        return key;
+    }
+
+    private static LinearProbingHashMap cacheLookup(ResultCache.Key key, PhaseTimer phases) {
+        long lookupStart = phases.now();
+        LinearProbingHashMap results = ResultCache.lookup(key);
+        phases.record(results != null ? "cache hit" : "cache miss", lookupStart);
+        return results;
+    }
+
+    private static void cacheStore(ResultCache.Key key, LinearProbingHashMap results, PhaseTimer phases) {
+        long storeStart = phases.now();
+        ResultCache.store(key, results);
+        phases.record("cache store", storeStart);
+    }
+
+    private static MemorySegment map(Path input, Arena arena) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        }
+    }
+
+    /**
+     * aggregates a mapped input, text or {@link ColumnarFormat}, into a single map
+     */
+    static LinearProbingHashMap aggregate(MemorySegment source, PhaseTimer phases) {
+        if (ColumnarFormat.isColumnar(source)) {
+            return ColumnarWorker.aggregate(source, phases);
+        }
+
+        ChunkScheduler scheduler = new ChunkScheduler(source, CHUNK_SIZE);
+        boolean vectorScanner = useVectorScanner();
+        ResultMerger merger = new ResultMerger(WORKER_COUNT, phases);
+        Future<LinearProbingHashMap>[] futures = new Future[WORKER_COUNT];
+
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            futures[i] = startWorker(source, scheduler, merger, phases, vectorScanner, i);
+        }
+
+        return collateResults(futures);
+    }
+
+    private static void reportPhases(PhaseTimer phases) throws IOException {
+        if (!PHASES.equals("off")) {
+            System.out.printf("%n%s", phases.summary(PHASES.equals("detail")));
+        }
+        if (PHASES_CSV != null) {
+            Files.writeString(Path.of(PHASES_CSV), phases.toCsv());
+        }
+    }
+
+    private static void write(ByteBuffer output) throws IOException {
+        // stdout's channel, deliberately not closed
+        FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        while (output.hasRemaining()) {
+            stdout.write(output);
+        }
+    }
+
+    private static void validityCheck(ByteBuffer rendered) throws IOException {
+        if (TRUTH != null) {
+            String result = StandardCharsets.UTF_8.decode(rendered).toString().stripTrailing();
+            List<String> problems = VerifyResults.verify(VerifyResults.readTruth(Path.of(TRUTH)), result);
+            problems.stream().limit(20).forEach(System.out::println);
+            if (!problems.isEmpty()) {
+                System.out.printf("%d problems against %s%n", problems.size(), TRUTH);
+            }
+            return;
+        }
+
+        // validity checks, only decoded when there's a difference to show
+        if (rendered.mismatch(ByteBuffer.wrap((GUNNAR_OUTPUT + '\n').getBytes(StandardCharsets.UTF_8))) != -1) {
+            String result = StandardCharsets.UTF_8.decode(rendered).toString().stripTrailing();
             System.out.println("expected: " + GUNNAR_OUTPUT);
             System.out.println("actual  : " + result);
             System.out.print("          ");
             for (int i = 0; i < Math.min(GUNNAR_OUTPUT.length(), result.length()); i++) {
                 if (GUNNAR_OUTPUT.charAt(i) != result.charAt(i)) {
                     System.out.print("^");
-                } else {
+                }
+                else {
                     System.out.print("-");
                 }
             }
@@ -492,32 +1870,49 @@ public class CalculateAverage_robjk {
         return modifiedStart;
     }
 
+    private static boolean useVectorScanner() {
+        return switch (SCANNER) {
+            case "vector" -> true;
+            case "scalar" -> false;
+            // don't touch VectorWorker (and so jdk.incubator.vector) unless the module is actually present
+            default -> ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && VectorWorker.isSupported();
+        };
+    }
+
     private static FutureTask<LinearProbingHashMap> startWorker(MemorySegment source,
-                                                                long startingOffset,
-                                                                long maxOffset) {
-        Worker worker = new Worker(source, startingOffset, maxOffset);
-        var futureTask = new FutureTask<>(worker);
-        new Thread(futureTask, "worker-from-" + worker.sourceOffset).start();
+                                                                ChunkScheduler scheduler,
+                                                                ResultMerger merger,
+                                                                PhaseTimer phases,
+                                                                boolean vectorScanner,
+                                                                int workerIndex) {
+        Worker worker = vectorScanner ? VectorWorker.create(source, scheduler) : new Worker(source, scheduler);
+        var futureTask = new FutureTask<>(() -> {
+            long parseStart = phases.now();
+            LinearProbingHashMap stationResults = worker.call();
+            phases.record("parse", parseStart, worker.rows, worker.bytes);
+            return merger.offer(stationResults);
+        });
+        new Thread(futureTask, "worker-" + workerIndex).start();
         return futureTask;
     }
 
-    private static String collateResults(Future<LinearProbingHashMap>[] futures) {
-        LinearProbingHashMap first = uncheckedGet(futures[0]);
-
-        Arrays.stream(futures)
+    private static LinearProbingHashMap collateResults(Future<LinearProbingHashMap>[] futures) {
+        // the workers have already merged their results, exactly one of them hands back the combined map - but wait
+        // on all of them so a failure in any worker surfaces here
+        return Arrays.stream(futures)
+                .map(CalculateAverage_robjk::uncheckedGet)
                 .toList()
                 .stream()
-                .skip(1)
-                .map(CalculateAverage_robjk::uncheckedGet)
-                .forEach(first::merge);
-
-        return first.toString();
+                .filter(Objects::nonNull)
+                .findFirst()
+                .orElseThrow();
     }
 
     private static <T> T uncheckedGet(Future<T> future) {
         try {
             return future.get();
-        } catch (InterruptedException | ExecutionException e) {
+        }
+        catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
@@ -15,38 +15,175 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.random.RandomGenerator;
 
+/**
+ * Generates measurements.txt in parallel. Rows are produced in fixed size blocks, each block drawing from its own
+ * random generator seeded from the seed and the block's index, so the file is byte for byte the same for a given seed
+ * and station set whatever the number of threads (or the order the blocks happen to finish in).
+ * <p>
+ * Each thread formats a block into its own buffer - station names are encoded once, temperatures written digit by
+ * digit, nothing allocated per row - then waits for the block before it to publish where it ended, publishes its own end
+ * and writes its rows at that offset with a positional write. A block holds as many rows as would fit in 8 MB if every
+ * one were the workload's longest, so the buffers stay small however long the names are. Only that hand-off is ordered, generating and writing run
+ * concurrently, and the file only ever grows to what's actually been written - nothing is reserved up front for the
+ * longest possible rows, which for a billion 100 byte names would be a ~100 GB file on filesystems without sparse
+ * files.
+ * <p>
+ * The shape of the workload is configurable, so maps and parsers can be benchmarked against data that looks like
+ * production rather than only the challenge's ~400 stations:
+ * <ul>
+ * <li>--stations: builtin (the stations below), csv (every distinct station in data/weather_stations.csv, ~41k),
+ * csv:file (name;latitude lines), or a number of synthetic stations. A csv station's mean temperature is derived from
+ * its latitude</li>
+ * <li>--name-length n or min-max: synthetic name lengths in UTF-8 bytes, uniformly distributed, up to 100</li>
+ * <li>--charset ascii or utf8: synthetic names from ascii letters, or mixed with 2, 3 and 4 byte characters</li>
+ * <li>--keys uniform or zipf[:s]: how often each station is picked, zipf makes the k-th most popular station 1/k^s as
+ * likely as the most popular (s defaults to 1), with popularity assigned in a random order</li>
+ * <li>--temperature gaussian[:sd] around each station's mean (sd defaults to 10), or uniform over the whole range</li>
+ * </ul>
+ * Temperatures are always clamped to -99.9..99.9. Synthetic names, means and popularity are drawn from the seed too,
+ * so the whole file is still determined by the seed and the options.
+ * <p>
+ * Alongside the file goes its ground truth, &lt;output&gt;.truth: every station's exact count, sum, min and max,
+ * tallied per thread while its blocks are formatted and summed up at the end, for {@link VerifyResults} to check any
+ * implementation's output against.
+ * <p>
+ * Usage: CreateMeasurements &lt;number of records to create&gt; [--seed n] [--threads n] [--output file]
+ * [--stations builtin|csv|csv:file|count] [--name-length n|min-max] [--charset ascii|utf8] [--keys uniform|zipf[:s]]
+ * [--temperature gaussian[:sd]|uniform]
+ */
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
 
+    // a block's rows at their longest, so a generator thread's buffer doesn't grow with the names. Part of the output's
+    // definition - changing it changes every file generated from a seed
+    private static final int BLOCK_BYTES = 8 << 20;
+    // ';' plus the longest temperature, "-99.9", and '\n'
+    private static final int MAX_MEASUREMENT_LENGTH = 7;
+    private static final int MAX_NAME_LENGTH = 100;
+
+    private static final String NAME_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ -'";
+    // 2, 3 and 4 byte UTF-8
+    private static final String[] MULTI_BYTE_CHARACTERS = { "é", "ü", "ł", "ğ", "東", "京", "€", "𝄞", "😀" };
+
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
-            return Math.round(m * 10.0) / 10.0;
+    }
+
+    /**
+     * how often each station is picked
+     */
+    private interface KeyShape {
+        int nextStation(RandomGenerator random);
+    }
+
+    /**
+     * how a station's measurements are spread around its mean, before rounding and clamping
+     */
+    private interface TemperatureShape {
+        double measurement(double mean, RandomGenerator random);
+    }
+
+    /**
+     * one generator thread's tally per station, temperatures in tenths
+     */
+    private static final class Totals {
+        final long[] counts;
+        final long[] sums;
+        final int[] mins;
+        final int[] maxs;
+
+        Totals(int stations) {
+            counts = new long[stations];
+            sums = new long[stations];
+            mins = new int[stations];
+            maxs = new int[stations];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+        }
+
+        void add(int station, int tenths) {
+            counts[station]++;
+            sums[station] += tenths;
+            mins[station] = Math.min(mins[station], tenths);
+            maxs[station] = Math.max(maxs[station], tenths);
+        }
+
+        void add(Totals other) {
+            for (int station = 0; station < counts.length; station++) {
+                counts[station] += other.counts[station];
+                sums[station] += other.sums[station];
+                mins[station] = Math.min(mins[station], other.mins[station]);
+                maxs[station] = Math.max(maxs[station], other.maxs[station]);
+            }
+        }
+    }
+
+    private record Workload(byte[][] rowPrefixes, double[] means, KeyShape keys, TemperatureShape temperatures) {
+        int maxRowLength() {
+            int maxRowLength = 0;
+            for (byte[] prefix : rowPrefixes) {
+                maxRowLength = Math.max(maxRowLength, prefix.length - 1 + MAX_MEASUREMENT_LENGTH);
+            }
+            return maxRowLength;
         }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
-            System.exit(1);
-        }
-
-        int size = 0;
+        long size = 0;
+        long seed = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path output = MEASUREMENT_FILE;
+        String stationSource = "builtin";
+        String nameLength = "4-24";
+        String charset = "ascii";
+        String keys = "uniform";
+        String temperature = "gaussian";
         try {
-            size = Integer.parseInt(args[0]);
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--seed" -> seed = Long.parseLong(args[++i]);
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--output" -> output = Path.of(args[++i]);
+                    case "--stations" -> stationSource = args[++i];
+                    case "--name-length" -> nameLength = args[++i];
+                    case "--charset" -> charset = args[++i];
+                    case "--keys" -> keys = args[++i];
+                    case "--temperature" -> temperature = args[++i];
+                    default -> size = Long.parseLong(args[i]);
+                }
+            }
         }
-        catch (NumberFormatException e) {
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
             System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            size = 0;
+        }
+
+        if (size <= 0 || threads <= 0) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--seed n] [--threads n] "
+                    + "[--output file] [--stations builtin|csv|csv:file|count] [--name-length n|min-max] "
+                    + "[--charset ascii|utf8] [--keys uniform|zipf[:s]] [--temperature gaussian[:sd]|uniform]");
             System.exit(1);
         }
 
@@ -489,17 +626,289 @@ public class CreateMeasurements {
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
 
-        try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
-            for (int i = 0; i < size; i++) {
-                if (i > 0 && i % 50_000_000 == 0) {
-                    System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
+        // drawn before, and separately from, every block's random
+        RandomGenerator setupRandom = blockRandom(seed, -1);
+        Workload workload;
+        try {
+            List<WeatherStation> selected = switch (stationSource) {
+                case "builtin" -> stations;
+                case "csv" -> csvStations(Path.of("data/weather_stations.csv"));
+                default -> stationSource.startsWith("csv:") ? csvStations(Path.of(stationSource.substring(4)))
+                        : syntheticStations(Integer.parseInt(stationSource), nameLength, charset, setupRandom);
+            };
+            workload = workload(selected, keys, temperature, setupRandom);
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Totals totals = new Totals(workload.means().length);
+        long length = generate(workload, size, seed, threads, output, totals);
+        writeTruth(workload, totals, output.resolveSibling(output.getFileName() + ".truth"));
+        System.out.printf("Created file with %,d measurements (%,d bytes, seed %d, %,d stations, %s keys, %s "
+                + "temperatures) in %s ms%n", size, length, seed, workload.means().length, keys, temperature,
+                System.currentTimeMillis() - start);
+    }
+
+    private static Workload workload(List<WeatherStation> stations, String keys, String temperature,
+                                     RandomGenerator random) {
+        byte[][] rowPrefixes = new byte[stations.size()][];
+        double[] means = new double[stations.size()];
+        for (int i = 0; i < rowPrefixes.length; i++) {
+            rowPrefixes[i] = (stations.get(i).id() + ";").getBytes(StandardCharsets.UTF_8);
+            means[i] = stations.get(i).meanTemperature();
+            if (rowPrefixes[i].length - 1 > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Station name longer than 100 bytes: " + stations.get(i).id());
+            }
+        }
+        return new Workload(rowPrefixes, means, keyShape(keys, stations.size(), random),
+                temperatureShape(temperature));
+    }
+
+    private static KeyShape keyShape(String keys, int stationCount, RandomGenerator random) {
+        if (keys.equals("uniform")) {
+            return r -> r.nextInt(stationCount);
+        }
+        if (!keys.equals("zipf") && !keys.startsWith("zipf:")) {
+            throw new IllegalArgumentException("Unknown key distribution " + keys);
+        }
+        double exponent = keys.equals("zipf") ? 1.0 : Double.parseDouble(keys.substring(5));
+
+        // rank k is 1/k^s as likely as rank 1, stations are dealt ranks at random so popularity isn't alphabetical
+        int[] stationByRank = new int[stationCount];
+        for (int i = 0; i < stationCount; i++) {
+            int j = random.nextInt(i + 1);
+            stationByRank[i] = stationByRank[j];
+            stationByRank[j] = i;
+        }
+        double[] cumulative = new double[stationCount];
+        double total = 0;
+        for (int rank = 0; rank < stationCount; rank++) {
+            total += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        double sum = total;
+        return r -> {
+            int rank = Arrays.binarySearch(cumulative, r.nextDouble(sum));
+            // not found gives -(insertion point) - 1, the first rank whose cumulative weight is beyond the draw
+            return stationByRank[rank >= 0 ? rank : -rank - 1];
+        };
+    }
+
+    private static TemperatureShape temperatureShape(String temperature) {
+        if (temperature.equals("uniform")) {
+            return (mean, r) -> r.nextDouble(-99.9, 99.9);
+        }
+        if (!temperature.equals("gaussian") && !temperature.startsWith("gaussian:")) {
+            throw new IllegalArgumentException("Unknown temperature distribution " + temperature);
+        }
+        double standardDeviation = temperature.equals("gaussian") ? 10 : Double.parseDouble(temperature.substring(9));
+        return (mean, r) -> r.nextGaussian(mean, standardDeviation);
+    }
+
+    private static List<WeatherStation> csvStations(Path path) {
+        // lines are name;latitude, the file repeats some names, the first one wins
+        Map<String, WeatherStation> stations = new LinkedHashMap<>();
+        try (var lines = Files.lines(path)) {
+            lines.filter(line -> !line.isBlank() && !line.startsWith("#"))
+                    .map(line -> line.split(";"))
+                    .forEach(fields -> stations.putIfAbsent(fields[0],
+                            new WeatherStation(fields[0], meanTemperature(Double.parseDouble(fields[1])))));
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Can't read stations from " + path + ": " + e);
+        }
+        return new ArrayList<>(stations.values());
+    }
+
+    private static double meanTemperature(double latitude) {
+        // a crude annual mean, ~30 at the equator down to -15 at the poles, roughly the builtin stations' range
+        return Math.clamp(30 - 0.5 * Math.abs(latitude), -15, 30);
+    }
+
+    private static List<WeatherStation> syntheticStations(int count, String nameLength, String charset,
+                                                          RandomGenerator random) {
+        String[] bounds = nameLength.split("-");
+        int minLength = Integer.parseInt(bounds[0]);
+        int maxLength = Integer.parseInt(bounds[bounds.length - 1]);
+        if (minLength < 1 || maxLength > MAX_NAME_LENGTH || minLength > maxLength) {
+            throw new IllegalArgumentException("Name lengths must be within 1-100 bytes: " + nameLength);
+        }
+        if (!charset.equals("ascii") && !charset.equals("utf8")) {
+            throw new IllegalArgumentException("Unknown charset " + charset);
+        }
+
+        Set<String> names = new HashSet<>();
+        List<WeatherStation> stations = new ArrayList<>(count);
+        for (long attempts = 0; stations.size() < count; attempts++) {
+            if (attempts > 10L * count + 1000) {
+                throw new IllegalArgumentException("Can't find %,d distinct names of %s bytes".formatted(count,
+                        nameLength));
+            }
+            String name = syntheticName(random.nextInt(minLength, maxLength + 1), charset.equals("utf8"), random);
+            if (names.add(name)) {
+                stations.add(new WeatherStation(name, Math.round(random.nextDouble(-15, 30) * 10.0) / 10.0));
+            }
+        }
+        return stations;
+    }
+
+    private static String syntheticName(int length, boolean utf8, RandomGenerator random) {
+        StringBuilder name = new StringBuilder();
+        int bytes = 0;
+        while (bytes < length) {
+            if (utf8 && random.nextInt(4) == 0) {
+                String multiByte = MULTI_BYTE_CHARACTERS[random.nextInt(MULTI_BYTE_CHARACTERS.length)];
+                int multiByteLength = multiByte.getBytes(StandardCharsets.UTF_8).length;
+                // only if it still fits, otherwise an ascii character makes up the length
+                if (bytes + multiByteLength <= length) {
+                    name.append(multiByte);
+                    bytes += multiByteLength;
+                    continue;
                 }
-                WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
-                bw.write(station.id());
-                bw.write(";" + station.measurement());
-                bw.write('\n');
             }
+            name.append(NAME_CHARACTERS.charAt(random.nextInt(NAME_CHARACTERS.length())));
+            bytes++;
+        }
+        return name.toString();
+    }
+
+    /**
+     * @param totals gets every thread's tally added to it
+     */
+    private static long generate(Workload workload, long size, long seed, int threads, Path output, Totals totals)
+            throws IOException {
+        int blockRows = BLOCK_BYTES / workload.maxRowLength();
+
+        long blockCount = (size + blockRows - 1) / blockRows;
+        List<CompletableFuture<Long>> blockStarts = new ArrayList<>();
+        for (long block = 0; block <= blockCount; block++) {
+            blockStarts.add(new CompletableFuture<>());
+        }
+        blockStarts.getFirst().complete(0L);
+
+        AtomicLong nextBlock = new AtomicLong();
+        // a failed write happens after the block's hand-off, so it can't go down the chain, it's rethrown once joined
+        AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        int bufferSize = (int) Math.min(size, blockRows) * workload.maxRowLength();
+
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            try {
+                List<Thread> workers = new ArrayList<>();
+                List<Totals> threadTotals = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    Totals tally = new Totals(workload.means().length);
+                    threadTotals.add(tally);
+                    workers.add(Thread.ofPlatform().name("generator-" + i).start(() -> {
+                        byte[] buffer = new byte[bufferSize];
+                        long block;
+                        while ((block = nextBlock.getAndIncrement()) < blockCount) {
+                            long firstRow = block * blockRows;
+                            int rows = (int) Math.min(blockRows, size - firstRow);
+                            long blockStart;
+                            int length;
+                            try {
+                                length = generateBlock(workload, blockRandom(seed, block), rows, buffer, tally);
+                                blockStart = blockStarts.get((int) block).join();
+                                blockStarts.get((int) block + 1).complete(blockStart + length);
+                            }
+                            catch (RuntimeException e) {
+                                // pass it down the chain, rather than leave every later block waiting forever
+                                blockStarts.get((int) block + 1).completeExceptionally(e);
+                                throw e;
+                            }
+                            // positional writes don't share the channel's position, concurrent ones are fine
+                            ByteBuffer rowBytes = ByteBuffer.wrap(buffer, 0, length);
+                            try {
+                                while (rowBytes.hasRemaining()) {
+                                    channel.write(rowBytes, blockStart + rowBytes.position());
+                                }
+                            }
+                            catch (IOException e) {
+                                writeFailure.compareAndSet(null, e);
+                                return;
+                            }
+
+                            if ((firstRow + rows) % 50_000_000 < blockRows && firstRow + rows >= 50_000_000) {
+                                System.out.printf("Wrote %,d measurements%n", firstRow + rows);
+                            }
+                        }
+                    }));
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                if (writeFailure.get() != null) {
+                    throw writeFailure.get();
+                }
+                for (Totals tally : threadTotals) {
+                    totals.add(tally);
+                }
+            }
+            catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            return blockStarts.getLast().join();
+        }
+    }
+
+    private static RandomGenerator blockRandom(long seed, long block) {
+        // SplittableRandom scrambles its seed, so neighbouring blocks' sequences are unrelated
+        return new SplittableRandom(seed * 0x9e3779b97f4a7c15L + block);
+    }
+
+    /**
+     * @return the number of bytes written to the buffer
+     */
+    private static int generateBlock(Workload workload, RandomGenerator random, int rows, byte[] buffer,
+                                     Totals totals) {
+        byte[][] rowPrefixes = workload.rowPrefixes();
+        int position = 0;
+        for (int i = 0; i < rows; i++) {
+            int station = workload.keys().nextStation(random);
+            byte[] prefix = rowPrefixes[station];
+            System.arraycopy(prefix, 0, buffer, position, prefix.length);
+            position += prefix.length;
+
+            // same rounding as ever, written as tenths rather than via Double.toString
+            double measurement = workload.temperatures().measurement(workload.means()[station], random);
+            int tenths = Math.clamp(Math.round(measurement * 10.0), -999, 999);
+            totals.add(station, tenths);
+            if (tenths < 0) {
+                buffer[position++] = '-';
+                tenths = -tenths;
+            }
+            position = writeDigits(buffer, position, tenths / 10);
+            buffer[position++] = '.';
+            buffer[position++] = (byte) ('0' + tenths % 10);
+            buffer[position++] = '\n';
+        }
+        return position;
+    }
+
+    private static void writeTruth(Workload workload, Totals totals, Path truth) throws IOException {
+        List<VerifyResults.StationTotals> stations = new ArrayList<>();
+        for (int station = 0; station < totals.counts.length; station++) {
+            // a station that never came up isn't in any output either
+            if (totals.counts[station] > 0) {
+                byte[] prefix = workload.rowPrefixes()[station];
+                String name = new String(prefix, 0, prefix.length - 1, StandardCharsets.UTF_8);
+                stations.add(new VerifyResults.StationTotals(name, totals.counts[station], totals.sums[station],
+                        totals.mins[station], totals.maxs[station]));
+            }
+        }
+        VerifyResults.writeTruth(truth, stations);
+    }
+
+    private static int writeDigits(byte[] buffer, int position, long value) {
+        if (value >= 10) {
+            position = writeDigits(buffer, position, value / 10);
         }
-        System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
+        buffer[position] = (byte) ('0' + value % 10);
+        return position + 1;
     }
 }
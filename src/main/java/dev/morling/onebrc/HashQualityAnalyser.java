@@ -0,0 +1,226 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Scores candidate station hashes offline, by building the robjk station map's probe sequence for whole sets of names
+ * rather than waiting for a slow run to say a hash was a poor choice. {@link CalculateAverage_robjk#HASH_CONSTANT} and
+ * the multiply-xor were picked by hand, this is the data to pick them with.
+ * <p>
+ * Every candidate hashes a name the way the workers do - little endian words, the final word masked to the name bytes
+ * (possibly none) and always mixed in - and differs only in the per word mix and the final fold. Names are inserted, in
+ * order, into a linear probing table sized as {@link CalculateAverage_robjk.LinearProbingHashMap} would size it for
+ * that many stations, and each candidate is scored on:
+ * <ul>
+ * <li>full 32 bit hash collisions - names only a full compare can tell apart</li>
+ * <li>home slot collisions - names sharing a home slot with an earlier name</li>
+ * <li>mean and max probes for a lookup that finds its name (every name looked up once), against what a random hash
+ * would give at the same load, (1 + 1/(1 - load)) / 2</li>
+ * </ul>
+ * Name sets: every distinct station in data/weather_stations.csv, and adversarial sets that go after a weakness of
+ * multiply based word hashing - names only differing in their last few bytes behind a long shared prefix, names
+ * differing only in the high bytes of a word (a multiply only moves entropy upwards, which the fold exists for) and
+ * generated style sequential names. --names adds a set from a file, one name per line (or name;... as in the csv).
+ * <p>
+ * Usage: HashQualityAnalyser [--stations file] [--names file]... [--constant n]...
+ */
+public class HashQualityAnalyser {
+
+    private static final int ADVERSARIAL_SET_SIZE = 10_000;
+
+    record Candidate(String name, LongBinaryOperator mix, LongToIntFunction fold) {
+        int hash(byte[] name) {
+            ByteBuffer words = ByteBuffer.wrap(Arrays.copyOf(name, (name.length & ~7) + 8))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long hash = 0;
+            for (int offset = 0; offset <= name.length; offset += 8) {
+                // the zero padding from copyOf is exactly the worker's masked final word
+                hash = mix.applyAsLong(hash, words.getLong(offset));
+            }
+            return fold.applyAsInt(hash);
+        }
+    }
+
+    record Score(int names, int slots, int hashCollisions, int homeSlotCollisions, double meanProbes, int maxProbes,
+                 double randomProbes) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path stations = Path.of("data/weather_stations.csv");
+        List<Path> nameFiles = new ArrayList<>();
+        List<Long> constants = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--stations" -> stations = Path.of(args[++i]);
+                case "--names" -> nameFiles.add(Path.of(args[++i]));
+                case "--constant" -> constants.add(Long.decode(args[++i]));
+                default -> {
+                    System.out.println("Usage: HashQualityAnalyser [--stations file] [--names file]... "
+                            + "[--constant n]...");
+                    System.exit(1);
+                }
+            }
+        }
+
+        Map<String, List<byte[]>> nameSets = new LinkedHashMap<>();
+        List<byte[]> stationNames = readNames(stations);
+        nameSets.put("stations", stationNames);
+        nameSets.put("shared-prefix", sharedPrefixNames());
+        nameSets.put("high-bytes", highByteNames());
+        nameSets.put("sequential", sequentialNames());
+        for (Path nameFile : nameFiles) {
+            nameSets.put(nameFile.getFileName().toString(), readNames(nameFile));
+        }
+
+        List<Candidate> candidates = candidates(constants);
+        for (Map.Entry<String, List<byte[]>> nameSet : nameSets.entrySet()) {
+            Score first = score(candidates.getFirst(), nameSet.getValue());
+            System.out.printf("%n%s: %,d names, %,d slots, random hash would average %.3f probes%n", nameSet.getKey(),
+                    first.names(), first.slots(), first.randomProbes());
+            System.out.printf("  %-32s %10s %10s %8s %6s%n", "hash", "hash coll", "home coll", "probes", "max");
+            for (Candidate candidate : candidates) {
+                Score score = score(candidate, nameSet.getValue());
+                System.out.printf("  %-32s %,10d %,10d %8.3f %6d%n", candidate.name(), score.hashCollisions(),
+                        score.homeSlotCollisions(), score.meanProbes(), score.maxProbes());
+            }
+        }
+    }
+
+    static List<Candidate> candidates(List<Long> constants) {
+        List<Candidate> candidates = new ArrayList<>();
+        // exactly what the workers run
+        candidates.add(new Candidate("robjk", CalculateAverage_robjk.Worker::mixHash,
+                CalculateAverage_robjk.Worker::foldHash));
+        // what the fold buys
+        candidates.add(new Candidate("robjk, low 32 bits only", CalculateAverage_robjk.Worker::mixHash,
+                hash -> (int) hash));
+        for (long constant : constants) {
+            candidates.add(new Candidate("multiply-xor " + constant, (hash, word) -> (hash ^ word) * constant,
+                    CalculateAverage_robjk.Worker::foldHash));
+        }
+        // 64 bit golden ratio, as used by many other 1brc entries
+        candidates.add(new Candidate("multiply-xor 0x9e3779b97f4a7c15",
+                (hash, word) -> (hash ^ word) * 0x9e3779b97f4a7c15L, CalculateAverage_robjk.Worker::foldHash));
+        // rustc's FxHash, rotate before the xor so repeated words don't cancel
+        candidates.add(new Candidate("fxhash", (hash, word) -> (Long.rotateLeft(hash, 5) ^ word) * 0x517cc1b727220a95L,
+                CalculateAverage_robjk.Worker::foldHash));
+        // String.hashCode style, a word at a time
+        candidates.add(new Candidate("polynomial 31", (hash, word) -> hash * 31 + word,
+                CalculateAverage_robjk.Worker::foldHash));
+        return candidates;
+    }
+
+    static Score score(Candidate candidate, List<byte[]> names) {
+        int[] hashes = names.stream().mapToInt(candidate::hash).toArray();
+
+        // as LinearProbingHashMap sizes itself, doubling until under the load factor
+        int slots = CalculateAverage_robjk.MAP_SIZE;
+        while (names.size() > slots * CalculateAverage_robjk.MAX_LOAD_FACTOR) {
+            slots <<= 1;
+        }
+        int slotMask = slots - 1;
+
+        Set<Integer> distinctHashes = new HashSet<>();
+        boolean[] homeTaken = new boolean[slots];
+        boolean[] filled = new boolean[slots];
+        int homeSlotCollisions = 0;
+        long totalProbes = 0;
+        int maxProbes = 0;
+        for (int hash : hashes) {
+            distinctHashes.add(hash);
+            int slot = hash & slotMask;
+            if (homeTaken[slot]) {
+                homeSlotCollisions++;
+            }
+            homeTaken[slot] = true;
+
+            // names are distinct, so where it's inserted is where every later lookup finds it
+            int probes = 1;
+            while (filled[slot]) {
+                slot = (slot + 1) & slotMask;
+                probes++;
+            }
+            filled[slot] = true;
+            totalProbes += probes;
+            maxProbes = Math.max(maxProbes, probes);
+        }
+
+        double load = (double) names.size() / slots;
+        return new Score(names.size(), slots, names.size() - distinctHashes.size(), homeSlotCollisions,
+                (double) totalProbes / Math.max(names.size(), 1), maxProbes, (1 + 1 / (1 - load)) / 2);
+    }
+
+    static List<byte[]> readNames(Path path) throws IOException {
+        try (var lines = Files.lines(path)) {
+            return lines.filter(line -> !line.isBlank() && !line.startsWith("#"))
+                    .map(line -> line.indexOf(';') >= 0 ? line.substring(0, line.indexOf(';')) : line)
+                    .distinct()
+                    .map(name -> name.getBytes(StandardCharsets.UTF_8))
+                    .toList();
+        }
+    }
+
+    private static List<byte[]> sharedPrefixNames() {
+        // 100 byte names, the same 96 bytes then 4 distinguishing ones - the whole name is only hashed, never
+        // compared, so this is about how well the final word's few bits survive 12 mixes of identical words
+        String prefix = "x".repeat(96);
+        return IntStream.range(0, ADVERSARIAL_SET_SIZE)
+                .mapToObj(i -> (prefix + "%4s".formatted(Integer.toString(i, 36)).replace(' ', '0'))
+                        .getBytes(StandardCharsets.UTF_8))
+                .toList();
+    }
+
+    private static List<byte[]> highByteNames() {
+        // 8 byte names differing only in their top two bytes, so only in the top 16 bits of the one word - every
+        // pair of printable ascii characters bar ';'
+        List<byte[]> names = new ArrayList<>();
+        for (byte high = ' '; high <= '~'; high++) {
+            for (byte low = ' '; low <= '~'; low++) {
+                if (high != ';' && low != ';') {
+                    byte[] name = "Statio__".getBytes(StandardCharsets.UTF_8);
+                    name[6] = low;
+                    name[7] = high;
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static List<byte[]> sequentialNames() {
+        return IntStream.range(0, ADVERSARIAL_SET_SIZE)
+                .mapToObj(i -> "station-%05d".formatted(i).getBytes(StandardCharsets.UTF_8))
+                .toList();
+    }
+}
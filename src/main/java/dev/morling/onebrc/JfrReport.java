@@ -0,0 +1,350 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Numbers rather than a GUI for the recordings in profiling/, so one optimisation iteration can be judged against the
+ * last from the command line.
+ * <p>
+ * For a single recording: the hottest methods by execution samples (self - the top frame - and total - anywhere on
+ * the stack), allocation by class, GC pauses and CPU by thread. Given two recordings the same tables are printed side
+ * by side with the change, as shares of each recording's samples/allocation so recordings of different lengths still
+ * compare.
+ * <p>
+ * With --collapsed the execution samples are written as collapsed stacks ("root;...;leaf count" per line) for
+ * flamegraph.pl or speedscope instead. Given two recordings each line carries both counts ("stack before after"), the
+ * input flamegraph.pl expects for a differential flame graph.
+ * <p>
+ * Works with recordings from JFR itself and from async-profiler (which is what's in profiling/ - no GC or per thread
+ * CPU events there, so thread CPU falls back to execution samples per thread).
+ * <p>
+ * Usage: JfrReport [--top n] [--collapsed] recording.jfr [other.jfr]
+ */
+public class JfrReport {
+
+    private static final String DIFF_HEADER = "    before    after   change%n".formatted();
+
+    record GcStats(long collections, Duration totalPause, Duration longestPause) {
+    }
+
+    record Profile(Path path, Duration duration, long samples, Map<String, Long> selfSamples,
+                   Map<String, Long> totalSamples, Map<String, Long> collapsedStacks,
+                   Map<String, Double> allocatedBytes, Map<String, Long> threadSamples, Map<String, Double> threadCpu,
+                   GcStats gc) {
+
+        double allocatedTotal() {
+            return allocatedBytes.values().stream().mapToDouble(Double::doubleValue).sum();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int top = 20;
+        boolean collapsed = false;
+        List<Path> recordings = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--top" -> top = Integer.parseInt(args[++i]);
+                case "--collapsed" -> collapsed = true;
+                default -> recordings.add(Path.of(args[i]));
+            }
+        }
+
+        if (recordings.isEmpty() || recordings.size() > 2) {
+            System.out.println("Usage: JfrReport [--top n] [--collapsed] recording.jfr [other.jfr]");
+            System.exit(1);
+        }
+
+        List<Profile> profiles = new ArrayList<>();
+        for (Path recording : recordings) {
+            profiles.add(read(recording));
+        }
+
+        if (collapsed) {
+            System.out.print(collapsed(profiles));
+        }
+        else if (profiles.size() == 1) {
+            System.out.print(summary(profiles.getFirst(), top));
+        }
+        else {
+            System.out.print(diff(profiles.get(0), profiles.get(1), top));
+        }
+    }
+
+    static Profile read(Path path) throws IOException {
+        Map<String, Long> selfSamples = new HashMap<>();
+        Map<String, Long> totalSamples = new HashMap<>();
+        Map<String, Long> collapsedStacks = new HashMap<>();
+        Map<String, Long> threadSamples = new HashMap<>();
+        Map<String, Double> sampledAllocation = new HashMap<>();
+        Map<String, Double> tlabAllocation = new HashMap<>();
+        Map<String, double[]> threadLoad = new HashMap<>();
+        long samples = 0;
+        long collections = 0;
+        Duration totalPause = Duration.ZERO;
+        Duration longestPause = Duration.ZERO;
+        Instant first = null;
+        Instant last = null;
+
+        try (RecordingFile recording = new RecordingFile(path)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (first == null || event.getStartTime().isBefore(first)) {
+                    first = event.getStartTime();
+                }
+                if (last == null || event.getEndTime().isAfter(last)) {
+                    last = event.getEndTime();
+                }
+
+                switch (event.getEventType().getName()) {
+                    case "jdk.ExecutionSample" -> {
+                        samples++;
+                        RecordedStackTrace stackTrace = event.getStackTrace();
+                        if (stackTrace != null && !stackTrace.getFrames().isEmpty()) {
+                            List<RecordedFrame> frames = stackTrace.getFrames();
+                            selfSamples.merge(methodName(frames.getFirst().getMethod()), 1L, Long::sum);
+
+                            // leaf first, so walk backwards for root first collapsed stacks
+                            Set<String> onStack = new LinkedHashSet<>();
+                            StringBuilder stack = new StringBuilder();
+                            for (int i = frames.size() - 1; i >= 0; i--) {
+                                String method = methodName(frames.get(i).getMethod());
+                                onStack.add(method);
+                                if (!stack.isEmpty()) {
+                                    stack.append(';');
+                                }
+                                stack.append(method);
+                            }
+                            // recursion only counts once towards a method's total
+                            onStack.forEach(method -> totalSamples.merge(method, 1L, Long::sum));
+                            collapsedStacks.merge(stack.toString(), 1L, Long::sum);
+                        }
+                        threadSamples.merge(threadName(event, "sampledThread"), 1L, Long::sum);
+                    }
+                    case "jdk.ObjectAllocationSample" -> sampledAllocation.merge(className(event),
+                            (double) event.getLong("weight"), Double::sum);
+                    case "jdk.ObjectAllocationInNewTLAB" -> tlabAllocation.merge(className(event),
+                            (double) event.getLong("tlabSize"), Double::sum);
+                    case "jdk.ObjectAllocationOutsideTLAB" -> tlabAllocation.merge(className(event),
+                            (double) event.getLong("allocationSize"), Double::sum);
+                    case "jdk.GarbageCollection" -> {
+                        collections++;
+                        totalPause = totalPause.plus(event.getDuration("sumOfPauses"));
+                        Duration longest = event.getDuration("longestPause");
+                        if (longest.compareTo(longestPause) > 0) {
+                            longestPause = longest;
+                        }
+                    }
+                    case "jdk.ThreadCPULoad" -> {
+                        double[] load = threadLoad.computeIfAbsent(threadName(event, "eventThread"),
+                                thread -> new double[2]);
+                        load[0] += event.getFloat("user") + event.getFloat("system");
+                        load[1]++;
+                    }
+                    default -> {
+                        // not summarised
+                    }
+                }
+            }
+        }
+
+        Map<String, Double> threadCpu = new HashMap<>();
+        threadLoad.forEach((thread, load) -> threadCpu.put(thread, load[0] / load[1]));
+
+        // both are estimates of the same thing, the allocation samples are the better one when they were recorded
+        Map<String, Double> allocatedBytes = sampledAllocation.isEmpty() ? tlabAllocation : sampledAllocation;
+
+        Duration duration = first == null ? Duration.ZERO : Duration.between(first, last);
+        return new Profile(path, duration, samples, selfSamples, totalSamples, collapsedStacks, allocatedBytes,
+                threadSamples, threadCpu, new GcStats(collections, totalPause, longestPause));
+    }
+
+    static String summary(Profile profile, int top) {
+        StringBuilder summary = new StringBuilder();
+        summary.append("%s%n  %d ms, %d execution samples%n".formatted(profile.path().getFileName(),
+                profile.duration().toMillis(), profile.samples()));
+
+        summary.append("%nhot methods (self)%n".formatted());
+        appendShares(summary, profile.selfSamples(), profile.samples(), top);
+        summary.append("%nhot methods (total)%n".formatted());
+        appendShares(summary, profile.totalSamples(), profile.samples(), top);
+
+        summary.append("%nallocation by class, %.1f MB%n".formatted(profile.allocatedTotal() / 1e6));
+        for (String type : topKeys(profile.allocatedBytes(), null, Double::doubleValue, top)) {
+            double bytes = profile.allocatedBytes().get(type);
+            summary.append("  %9.1f MB %6.2f%%  %s%n".formatted(bytes / 1e6, share(bytes, profile.allocatedTotal()),
+                    type));
+        }
+
+        summary.append("%nGC%n  %s%n".formatted(gc(profile.gc())));
+
+        if (profile.threadCpu().isEmpty()) {
+            summary.append("%nexecution samples by thread%n".formatted());
+            appendShares(summary, profile.threadSamples(), profile.samples(), top);
+        }
+        else {
+            summary.append("%nmean CPU load by thread (user + system)%n".formatted());
+            for (String thread : topKeys(profile.threadCpu(), null, Double::doubleValue, top)) {
+                summary.append("  %6.2f%%  %s%n".formatted(profile.threadCpu().get(thread) * 100, thread));
+            }
+        }
+        return summary.toString();
+    }
+
+    static String diff(Profile before, Profile after, int top) {
+        StringBuilder diff = new StringBuilder();
+        diff.append("before %s%n  %d ms, %d execution samples%n".formatted(before.path().getFileName(),
+                before.duration().toMillis(), before.samples()));
+        diff.append("after  %s%n  %d ms, %d execution samples%n".formatted(after.path().getFileName(),
+                after.duration().toMillis(), after.samples()));
+
+        diff.append("%nhot methods (self)%n%s".formatted(DIFF_HEADER));
+        appendShareDiff(diff, before.selfSamples(), before.samples(), after.selfSamples(), after.samples(), top);
+        diff.append("%nhot methods (total)%n%s".formatted(DIFF_HEADER));
+        appendShareDiff(diff, before.totalSamples(), before.samples(), after.totalSamples(), after.samples(), top);
+
+        diff.append("%nallocation by class (MB)%n%s".formatted(DIFF_HEADER));
+        diff.append("  %8.1f %8.1f %+8.1f  total%n".formatted(before.allocatedTotal() / 1e6,
+                after.allocatedTotal() / 1e6, (after.allocatedTotal() - before.allocatedTotal()) / 1e6));
+        for (String type : topKeys(before.allocatedBytes(), after.allocatedBytes(), Double::doubleValue, top)) {
+            double beforeBytes = before.allocatedBytes().getOrDefault(type, 0.0);
+            double afterBytes = after.allocatedBytes().getOrDefault(type, 0.0);
+            diff.append("  %8.1f %8.1f %+8.1f  %s%n".formatted(beforeBytes / 1e6, afterBytes / 1e6,
+                    (afterBytes - beforeBytes) / 1e6, type));
+        }
+
+        diff.append("%nGC%n  before %s%n  after  %s%n".formatted(gc(before.gc()), gc(after.gc())));
+
+        diff.append("%nexecution samples by thread%n%s".formatted(DIFF_HEADER));
+        appendShareDiff(diff, before.threadSamples(), before.samples(), after.threadSamples(), after.samples(), top);
+        return diff.toString();
+    }
+
+    static String collapsed(List<Profile> profiles) {
+        StringBuilder collapsed = new StringBuilder();
+        if (profiles.size() == 1) {
+            profiles.getFirst().collapsedStacks()
+                    .forEach((stack, count) -> collapsed.append(stack).append(' ').append(count).append('\n'));
+        }
+        else {
+            Map<String, Long> before = profiles.get(0).collapsedStacks();
+            Map<String, Long> after = profiles.get(1).collapsedStacks();
+            Set<String> stacks = new LinkedHashSet<>(before.keySet());
+            stacks.addAll(after.keySet());
+            for (String stack : stacks) {
+                collapsed.append(stack).append(' ').append(before.getOrDefault(stack, 0L)).append(' ')
+                        .append(after.getOrDefault(stack, 0L)).append('\n');
+            }
+        }
+        return collapsed.toString();
+    }
+
+    private static void appendShares(StringBuilder builder, Map<String, Long> counts, long total, int top) {
+        for (String key : topKeys(counts, null, Long::doubleValue, top)) {
+            long count = counts.get(key);
+            builder.append("  %6d %6.2f%%  %s%n".formatted(count, share(count, total), key));
+        }
+    }
+
+    private static void appendShareDiff(StringBuilder builder, Map<String, Long> before, long beforeTotal,
+                                        Map<String, Long> after, long afterTotal, int top) {
+        // rank by share so the recordings' lengths don't matter
+        Map<String, Double> beforeShares = shares(before, beforeTotal);
+        Map<String, Double> afterShares = shares(after, afterTotal);
+        for (String key : topKeys(beforeShares, afterShares, Double::doubleValue, top)) {
+            double beforeShare = beforeShares.getOrDefault(key, 0.0);
+            double afterShare = afterShares.getOrDefault(key, 0.0);
+            builder.append("  %7.2f%% %7.2f%% %+7.2f  %s%n".formatted(beforeShare, afterShare,
+                    afterShare - beforeShare, key));
+        }
+    }
+
+    private static Map<String, Double> shares(Map<String, Long> counts, long total) {
+        Map<String, Double> shares = new HashMap<>();
+        counts.forEach((key, count) -> shares.put(key, share(count, total)));
+        return shares;
+    }
+
+    /**
+     * @return the keys with the largest values, across both maps when comparing (largest of the two values)
+     */
+    private static <V> List<String> topKeys(Map<String, V> first, Map<String, V> second, ToDoubleFunction<V> value,
+                                            int top) {
+        Map<String, Double> largest = new HashMap<>();
+        first.forEach((key, v) -> largest.merge(key, value.applyAsDouble(v), Math::max));
+        if (second != null) {
+            second.forEach((key, v) -> largest.merge(key, value.applyAsDouble(v), Math::max));
+        }
+        return largest.entrySet().stream()
+                .sorted(Map.Entry.<String, Double> comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(top)
+                .map(Map.Entry::getKey)
+                .toList();
+    }
+
+    private static double share(double value, double total) {
+        return total == 0 ? 0 : value * 100 / total;
+    }
+
+    private static String gc(GcStats gc) {
+        if (gc.collections() == 0) {
+            return "no collections recorded";
+        }
+        return "%d collections, %.1f ms paused, longest pause %.1f ms".formatted(gc.collections(),
+                gc.totalPause().toNanos() / 1e6, gc.longestPause().toNanos() / 1e6);
+    }
+
+    private static String methodName(RecordedMethod method) {
+        if (method == null) {
+            return "[unknown]";
+        }
+        return method.getType().getName() + "." + method.getName();
+    }
+
+    private static String className(RecordedEvent event) {
+        RecordedClass type = event.getClass("objectClass");
+        return type == null ? "[unknown]" : type.getName();
+    }
+
+    private static String threadName(RecordedEvent event, String field) {
+        RecordedThread thread = event.getThread(field);
+        if (thread == null) {
+            return "[unknown]";
+        }
+        return thread.getJavaName() != null ? thread.getJavaName() : thread.getOSName();
+    }
+}
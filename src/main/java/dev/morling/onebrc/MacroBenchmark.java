@@ -0,0 +1,418 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+/**
+ * Runs any of the CalculateAverage_* implementations against the same input, each run in a fresh JVM so that one
+ * implementation's JIT, heap and page cache footprint doesn't leak into the next.
+ * <p>
+ * The implementations all read from a hard-coded relative path (./measurements.txt, or robjk's Windows path), so each
+ * JVM is started in a scratch directory with those names linked to the input. The JVM is launched through
+ * {@link Child}, which calls the implementation's main and on exit appends its own CPU time, peak RSS and GC count to a
+ * metrics file - a JVM can't be asked for those once it has gone. Implementations that spawn a worker JVM (thomaswue)
+ * spawn it through {@link Child} too, so both report: CPU time and GC counts are summed, peak RSS is the larger of the
+ * two.
+ * <p>
+ * Usage: MacroBenchmark [--input file] [--warmup n] [--runs n] [--csv file] [--json file] [--expected file]
+ * [--truth file] [--jvm-arg arg]... (implementation... | all)
+ * <p>
+ * Implementations are named by their suffix, e.g. robjk or thomaswue. With --expected each run's output (the line
+ * starting '{') is compared against the file's, so a fast but wrong engine stands out. --truth checks it with
+ * {@link VerifyResults} instead, against the .truth file {@link CreateMeasurements} wrote along with the input.
+ */
+public class MacroBenchmark {
+
+    private static final String PREFIX = "CalculateAverage_";
+    private static final String METRICS_PROPERTY = "macrobenchmark.metrics";
+
+    record Run(long wallNanos, long cpuNanos, long peakRssKb, long gcCount, int exitCode, Boolean correct) {
+    }
+
+    record Summary(String implementation, List<Run> runs) {
+        double wallMeanMs() {
+            return runs.stream().mapToLong(Run::wallNanos).average().orElse(0) / 1e6;
+        }
+
+        double wallMedianMs() {
+            return percentile(0.5);
+        }
+
+        double wallP90Ms() {
+            return percentile(0.9);
+        }
+
+        double cpuMeanMs() {
+            return runs.stream().mapToLong(Run::cpuNanos).average().orElse(0) / 1e6;
+        }
+
+        long peakRssKb() {
+            return runs.stream().mapToLong(Run::peakRssKb).max().orElse(-1);
+        }
+
+        double gcCountMean() {
+            return runs.stream().mapToLong(Run::gcCount).average().orElse(0);
+        }
+
+        boolean failed() {
+            return runs.stream().anyMatch(run -> run.exitCode() != 0 || Boolean.FALSE.equals(run.correct()));
+        }
+
+        private double percentile(double percentile) {
+            // nearest rank
+            long[] sorted = runs.stream().mapToLong(Run::wallNanos).sorted().toArray();
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path input = Path.of("measurements.txt");
+        int warmup = 1;
+        int runs = 5;
+        Path csv = null;
+        Path json = null;
+        Path expected = null;
+        Path truth = null;
+        List<String> jvmArgs = new ArrayList<>();
+        List<String> implementations = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--input" -> input = Path.of(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--csv" -> csv = Path.of(args[++i]);
+                case "--json" -> json = Path.of(args[++i]);
+                case "--expected" -> expected = Path.of(args[++i]);
+                case "--truth" -> truth = Path.of(args[++i]);
+                case "--jvm-arg" -> jvmArgs.add(args[++i]);
+                case "all" -> implementations.addAll(discoverImplementations());
+                default -> implementations.add(args[i]);
+            }
+        }
+
+        if (implementations.isEmpty()) {
+            System.out.println("Usage: MacroBenchmark [--input file] [--warmup n] [--runs n] [--csv file] "
+                    + "[--json file] [--expected file] [--truth file] [--jvm-arg arg]... "
+                    + "(implementation... | all)");
+            System.exit(1);
+        }
+
+        Predicate<String> check = null;
+        if (truth != null) {
+            Map<String, VerifyResults.StationTotals> totals = VerifyResults.readTruth(truth);
+            check = line -> VerifyResults.verify(totals, line).isEmpty();
+        }
+        else if (expected != null) {
+            check = resultLine(Files.readString(expected))::equals;
+        }
+        Path workDir = prepareWorkDir(input.toAbsolutePath());
+
+        List<Summary> summaries = new ArrayList<>();
+        for (String implementation : implementations) {
+            for (int i = 0; i < warmup; i++) {
+                run(implementation, workDir, jvmArgs, check);
+            }
+
+            List<Run> measured = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                Run run = run(implementation, workDir, jvmArgs, check);
+                System.out.printf("%-28s run %2d: %6d ms wall, %6d ms cpu%s%n", implementation, i,
+                        run.wallNanos() / 1_000_000, run.cpuNanos() / 1_000_000, problem(run));
+                measured.add(run);
+            }
+            summaries.add(new Summary(implementation, measured));
+        }
+
+        System.out.println();
+        System.out.printf("%-28s %10s %10s %10s %10s %10s %8s%n", "implementation", "mean ms", "median ms", "p90 ms",
+                "cpu ms", "rss MB", "gcs");
+        for (Summary summary : summaries) {
+            System.out.printf("%-28s %10.0f %10.0f %10.0f %10.0f %10.1f %8.1f%s%n", summary.implementation(),
+                    summary.wallMeanMs(), summary.wallMedianMs(), summary.wallP90Ms(), summary.cpuMeanMs(),
+                    summary.peakRssKb() / 1024.0, summary.gcCountMean(), summary.failed() ? "  FAILED" : "");
+        }
+
+        if (csv != null) {
+            Files.writeString(csv, toCsv(summaries));
+        }
+        if (json != null) {
+            Files.writeString(json, toJson(summaries));
+        }
+    }
+
+    private static String problem(Run run) {
+        if (run.exitCode() != 0) {
+            return ", exit " + run.exitCode();
+        }
+        return Boolean.FALSE.equals(run.correct()) ? ", WRONG OUTPUT" : "";
+    }
+
+    static Run run(String implementation, Path workDir, List<String> jvmArgs, Predicate<String> check)
+            throws IOException, InterruptedException {
+        return run(implementation, workDir, List.of(), jvmArgs, check);
+    }
+
+    /**
+     * @param launcher command line the JVM is started through, e.g. taskset to pin it to particular CPUs
+     * @param check whether the result line is correct, null to not check
+     */
+    static Run run(String implementation, Path workDir, List<String> launcher, List<String> jvmArgs,
+                   Predicate<String> check)
+            throws IOException, InterruptedException {
+        Path metrics = workDir.resolve("metrics.txt");
+        Path output = workDir.resolve("output.txt");
+        Files.deleteIfExists(metrics);
+
+        List<String> command = new ArrayList<>(launcher);
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("--enable-preview");
+        command.add("--add-modules");
+        command.add("jdk.incubator.vector");
+        // output goes to a file, without this non-ascii station names come out as '?' unless the locale is UTF-8
+        command.add("-Dstdout.encoding=UTF-8");
+        command.addAll(jvmArgs);
+        command.add("-D" + METRICS_PROPERTY + "=" + metrics);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Child.class.getName());
+        command.add(implementation);
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectOutput(output.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        int exitCode = process.waitFor();
+        long wallNanos = System.nanoTime() - start;
+
+        long cpuNanos = 0;
+        long peakRssKb = -1;
+        long gcCount = 0;
+        if (Files.exists(metrics)) {
+            for (String line : Files.readAllLines(metrics)) {
+                String[] fields = line.split(",");
+                cpuNanos += Long.parseLong(fields[0]);
+                peakRssKb = Math.max(peakRssKb, Long.parseLong(fields[1]));
+                gcCount += Long.parseLong(fields[2]);
+            }
+        }
+
+        Boolean correct = check == null ? null : check.test(resultLine(Files.readString(output)));
+        return new Run(wallNanos, cpuNanos, peakRssKb, gcCount, exitCode, correct);
+    }
+
+    static Path prepareWorkDir(Path input) throws IOException {
+        Path workDir = Files.createTempDirectory("macrobenchmark");
+        workDir.toFile().deleteOnExit();
+        // robjk's path is absolute on Windows, relative (and a perfectly legal file name) everywhere else
+        for (String name : List.of("measurements.txt", "D:\\development\\workspace\\1brc\\measurements.txt")) {
+            Path link = workDir.resolve(name);
+            try {
+                Files.createSymbolicLink(link, input);
+            }
+            catch (IOException | UnsupportedOperationException | InvalidPathException e) {
+                // no symlink privilege (Windows) - a hard link still avoids copying the file
+                Files.createLink(link, input);
+            }
+            link.toFile().deleteOnExit();
+        }
+        workDir.resolve("metrics.txt").toFile().deleteOnExit();
+        workDir.resolve("output.txt").toFile().deleteOnExit();
+        return workDir;
+    }
+
+    static String resultLine(String output) {
+        return output.lines().filter(line -> line.startsWith("{")).findFirst().orElse("");
+    }
+
+    private static List<String> discoverImplementations() throws IOException {
+        TreeSet<String> found = new TreeSet<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            Path path = Path.of(entry);
+            if (Files.isDirectory(path)) {
+                try (var files = Files.list(path.resolve("dev/morling/onebrc"))) {
+                    files.map(file -> file.getFileName().toString()).forEach(name -> addImplementation(found, name));
+                }
+                catch (IOException e) {
+                    // not ours
+                }
+            }
+            else if (entry.endsWith(".jar")) {
+                try (JarFile jar = new JarFile(entry)) {
+                    jar.stream().map(jarEntry -> jarEntry.getName())
+                            .filter(name -> name.startsWith("dev/morling/onebrc/"))
+                            .forEach(name -> addImplementation(found, name.substring(name.lastIndexOf('/') + 1)));
+                }
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
+    private static void addImplementation(TreeSet<String> found, String fileName) {
+        // top level classes only, nested classes have a '$'
+        if (fileName.startsWith(PREFIX) && fileName.endsWith(".class") && !fileName.contains("$")) {
+            found.add(fileName.substring(PREFIX.length(), fileName.length() - ".class".length()));
+        }
+    }
+
+    private static String toCsv(List<Summary> summaries) {
+        StringBuilder csv = new StringBuilder("implementation,runs,wall_mean_ms,wall_median_ms,wall_p90_ms,"
+                + "cpu_mean_ms,peak_rss_kb,gc_count_mean,failed\n");
+        for (Summary summary : summaries) {
+            csv.append("%s,%d,%.1f,%.1f,%.1f,%.1f,%d,%.1f,%b%n".formatted(summary.implementation(),
+                    summary.runs().size(),
+                    summary.wallMeanMs(), summary.wallMedianMs(), summary.wallP90Ms(), summary.cpuMeanMs(),
+                    summary.peakRssKb(), summary.gcCountMean(), summary.failed()));
+        }
+        return csv.toString();
+    }
+
+    private static String toJson(List<Summary> summaries) {
+        // flat enough not to warrant a JSON library
+        return summaries.stream().map(summary -> """
+                  {
+                    "implementation": "%s",
+                    "wallMeanMs": %.1f,
+                    "wallMedianMs": %.1f,
+                    "wallP90Ms": %.1f,
+                    "cpuMeanMs": %.1f,
+                    "peakRssKb": %d,
+                    "gcCountMean": %.1f,
+                    "failed": %b,
+                    "runs": [
+                %s
+                    ]
+                  }""".formatted(summary.implementation(), summary.wallMeanMs(), summary.wallMedianMs(),
+                summary.wallP90Ms(), summary.cpuMeanMs(), summary.peakRssKb(), summary.gcCountMean(), summary.failed(),
+                summary.runs().stream().map(MacroBenchmark::toJson).collect(Collectors.joining(",\n"))))
+                .collect(Collectors.joining(",\n", "[\n", "\n]\n"));
+    }
+
+    private static String toJson(Run run) {
+        return ("      {\"wallNanos\": %d, \"cpuNanos\": %d, \"peakRssKb\": %d, \"gcCount\": %d, \"exitCode\": %d, "
+                + "\"correct\": %s}").formatted(run.wallNanos(), run.cpuNanos(), run.peakRssKb(), run.gcCount(),
+                        run.exitCode(), run.correct());
+    }
+
+    /**
+     * Entry point of each benchmarked JVM: records this JVM's metrics on exit, however the implementation exits, then
+     * hands over to the implementation's main - static main(String[]) or an instance main (robjk).
+     */
+    public static class Child {
+        public static void main(String[] args) throws Throwable {
+            String metrics = System.getProperty(METRICS_PROPERTY);
+            if (metrics != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> appendMetrics(Path.of(metrics))));
+            }
+
+            Class<?> implementation = Class.forName(MacroBenchmark.class.getPackageName() + "." + PREFIX + args[0]);
+            String[] implementationArgs = Arrays.copyOfRange(args, 1, args.length);
+
+            Optional<Method> withArgs = findMain(implementation, String[].class);
+            Method main = withArgs.or(() -> findMain(implementation)).orElseThrow(
+                    () -> new IllegalArgumentException("no main method in " + implementation.getName()));
+            main.setAccessible(true);
+
+            Object target = null;
+            if (!Modifier.isStatic(main.getModifiers())) {
+                Constructor<?> constructor = implementation.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                target = constructor.newInstance();
+            }
+
+            try {
+                if (main.getParameterCount() == 1) {
+                    main.invoke(target, (Object) implementationArgs);
+                }
+                else {
+                    main.invoke(target);
+                }
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private static Optional<Method> findMain(Class<?> implementation, Class<?>... parameterTypes) {
+            try {
+                return Optional.of(implementation.getDeclaredMethod("main", parameterTypes));
+            }
+            catch (NoSuchMethodException e) {
+                return Optional.empty();
+            }
+        }
+
+        private static void appendMetrics(Path metrics) {
+            long cpuNanos = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getProcessCpuTime();
+            long gcCount = ManagementFactory.getGarbageCollectorMXBeans().stream()
+                    .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                    .filter(count -> count > 0)
+                    .sum();
+            String line = "%d,%d,%d%n".formatted(cpuNanos, peakRssKb(), gcCount);
+            try {
+                Files.writeString(metrics, line, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static long peakRssKb() {
+            // Linux only, VmHWM is the resident set high water mark
+            try {
+                return Files.readAllLines(Path.of("/proc/self/status")).stream()
+                        .filter(line -> line.startsWith("VmHWM:"))
+                        .mapToLong(line -> Long.parseLong(line.replaceAll("\\D", "")))
+                        .findFirst()
+                        .orElse(-1);
+            }
+            catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * {@link Timer} broken down by phase, for when the total alone doesn't say whether parsing, merging or teardown is
+ * where a run went slow.
+ * <p>
+ * Each {@link #record} is one interval on the run's timeline, tagged with the phase and the thread that ran it. Phases
+ * that run several times or on several threads at once (parsing, merging) are simply recorded once per run, optionally
+ * with the rows and bytes they got through, and the summary folds them together: wall time from the first start to
+ * the last end, time summed across runs, and the spread between the first and last to finish - how long everyone
+ * waited on the stragglers.
+ * <p>
+ * Recording is two nanoTime calls and a synchronized add per interval, so only intended for coarse phases, never per
+ * record.
+ */
+public class PhaseTimer {
+
+    record Interval(String phase, String thread, long startNanos, long endNanos, long rows, long bytes) {
+        long nanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    private final long origin = System.nanoTime();
+    private final List<Interval> intervals = new ArrayList<>();
+
+    public long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * record a phase that ran on the current thread from {@code startNanos} (as returned by {@link #now()}) until now
+     */
+    public void record(String phase, long startNanos) {
+        record(phase, startNanos, 0, 0);
+    }
+
+    public void record(String phase, long startNanos, long rows, long bytes) {
+        Interval interval = new Interval(phase, Thread.currentThread().getName(), startNanos, now(), rows, bytes);
+        synchronized (intervals) {
+            intervals.add(interval);
+        }
+    }
+
+    public List<Interval> intervals() {
+        synchronized (intervals) {
+            return List.copyOf(intervals);
+        }
+    }
+
+    /**
+     * @return one line per phase in the order they first started, and with {@code detail} every interval of the
+     * phases recorded on more than one thread
+     */
+    public String summary(boolean detail) {
+        StringBuilder summary = new StringBuilder("total %d ms%n".formatted(millis(now() - origin)));
+
+        Map<String, List<Interval>> phases = byPhase();
+        // wide enough for the longest phase name, so the ms columns line up
+        int nameWidth = phases.keySet().stream().mapToInt(String::length).max().orElse(0);
+        String phaseLine = "  %-" + Math.max(nameWidth, 10) + "s %6d ms  at %6d ms";
+        for (Map.Entry<String, List<Interval>> phase : phases.entrySet()) {
+            List<Interval> runs = phase.getValue();
+            long start = runs.stream().mapToLong(Interval::startNanos).min().orElseThrow();
+            long firstEnd = runs.stream().mapToLong(Interval::endNanos).min().orElseThrow();
+            long end = runs.stream().mapToLong(Interval::endNanos).max().orElseThrow();
+            long rows = runs.stream().mapToLong(Interval::rows).sum();
+            long bytes = runs.stream().mapToLong(Interval::bytes).sum();
+
+            summary.append(phaseLine.formatted(phase.getKey(), millis(end - start),
+                    millis(start - origin)));
+            if (runs.size() > 1) {
+                summary.append("  %d runs, %d ms summed, last finished %d ms after first".formatted(runs.size(),
+                        millis(runs.stream().mapToLong(Interval::nanos).sum()), millis(end - firstEnd)));
+            }
+            if (rows > 0) {
+                summary.append(throughput(rows, bytes, end - start));
+            }
+            summary.append('\n');
+
+            if (detail && runs.size() > 1) {
+                for (Interval run : runs) {
+                    summary.append("    %-12s %6d ms  at %6d ms".formatted(run.thread(), millis(run.nanos()),
+                            millis(run.startNanos() - origin)));
+                    if (run.rows() > 0) {
+                        summary.append(throughput(run.rows(), run.bytes(), run.nanos()));
+                    }
+                    summary.append('\n');
+                }
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return every interval, times in microseconds relative to when this timer was created
+     */
+    public String toCsv() {
+        return intervals().stream()
+                .map(interval -> "%s,%s,%d,%d,%d,%d".formatted(interval.phase(), interval.thread(),
+                        micros(interval.startNanos() - origin), micros(interval.nanos()), interval.rows(),
+                        interval.bytes()))
+                .collect(Collectors.joining("\n", "phase,thread,start_us,duration_us,rows,bytes\n", "\n"));
+    }
+
+    private Map<String, List<Interval>> byPhase() {
+        Map<String, List<Interval>> phases = new LinkedHashMap<>();
+        intervals().stream()
+                .sorted((a, b) -> Long.compare(a.startNanos(), b.startNanos()))
+                .forEach(interval -> phases.computeIfAbsent(interval.phase(), key -> new ArrayList<>()).add(interval));
+        return phases;
+    }
+
+    private static String throughput(long rows, long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        return "  %,d rows %.1f M rows/s %.1f MB/s".formatted(rows, rows / seconds / 1e6, bytes / seconds / 1e6);
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
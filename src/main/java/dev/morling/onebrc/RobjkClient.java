@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Sends a job to a running robjk daemon ({@link CalculateAverage_robjk.Daemon}) and prints its result exactly as the
+ * command line would, so it can stand in for it. Nothing but this class is loaded, the aggregation itself runs in the
+ * daemon's already warm JVM.
+ * <p>
+ * The protocol is one line each way, anything that can talk to a Unix domain socket will do:
+ * {@code echo /abs/path/measurements.txt | nc -U /tmp/robjk-$USER/robjk.sock}
+ * <p>
+ * Usage: RobjkClient [--socket path] input
+ */
+public class RobjkClient {
+
+    // where the daemon listens unless told otherwise, -Drobjk.socket=path. In a directory of its own per user, which
+    // the daemon creates owner only - the temp directory itself is everyone's
+    static final Path SOCKET = Path.of(System.getProperty("robjk.socket", Path.of(System.getProperty("java.io.tmpdir"),
+            "robjk-" + System.getProperty("user.name"), "robjk.sock").toString()));
+
+    public static void main(String[] args) throws IOException {
+        Path socket = SOCKET;
+        Path input = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--socket" -> socket = Path.of(args[++i]);
+                default -> input = Path.of(args[i]);
+            }
+        }
+        if (input == null) {
+            System.out.println("Usage: RobjkClient [--socket path] input");
+            System.exit(1);
+        }
+
+        ByteBuffer response = ByteBuffer.allocate(64 * 1024);
+        try (SocketChannel daemon = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            // the daemon's working directory is its own
+            daemon.write(StandardCharsets.UTF_8.encode(input.toAbsolutePath() + "\n"));
+            daemon.shutdownOutput();
+            while (daemon.read(response) >= 0) {
+                if (!response.hasRemaining()) {
+                    response = ByteBuffer.allocate(response.capacity() * 2).put(response.flip());
+                }
+            }
+        }
+
+        response.flip();
+        if (StandardCharsets.UTF_8.decode(response.duplicate().limit(Math.min(response.limit(), 6))).toString()
+                .equals("ERROR ")) {
+            System.err.print(StandardCharsets.UTF_8.decode(response));
+            System.exit(1);
+        }
+        // stdout's channel, deliberately not closed
+        FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        while (response.hasRemaining()) {
+            stdout.write(response);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * How an implementation's wall time scales with thread count, to size instances rather than guess. Each thread count
+ * is a {@link MacroBenchmark} run with -XX:ActiveProcessorCount=n, which every implementation (robjk included, its
+ * worker count defaults to the available processors) sizes its thread pool from.
+ * <p>
+ * On Linux, with taskset available, the JVM can also be pinned so the difference SMT makes is visible:
+ * <ul>
+ * <li>unpinned - the OS schedules n threads wherever it likes</li>
+ * <li>nosmt - pinned to one logical CPU on each of n physical cores</li>
+ * <li>smt - pinned to n logical CPUs filling both siblings of a core before moving on to the next</li>
+ * </ul>
+ * Per thread count: median wall time, throughput (MB/s and rows/s), speedup over one thread, parallel efficiency
+ * (speedup / n) and the Karp-Flatt estimate of the serial fraction, e = (1/speedup - 1/n) / (1 - 1/n). A serial
+ * fraction that grows with n points at overhead (merging, contention) rather than a fixed serial part.
+ * <p>
+ * --expected and --truth check every run's output as {@link MacroBenchmark} does, a thread count whose output is
+ * wrong is marked FAILED rather than reported as a speedup.
+ * <p>
+ * Usage: ScalingBenchmark [--input file] [--max-threads n] [--warmup n] [--runs n] [--mode unpinned|nosmt|smt|all]
+ * [--csv file] [--expected file] [--truth file] [--jvm-arg arg]... [implementation...]
+ */
+public class ScalingBenchmark {
+
+    record Point(String implementation, String mode, int threads, double medianMs, double megabytesPerSecond,
+                 double rowsPerSecond, double speedup, double efficiency, double serialFraction, boolean failed) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path input = Path.of("measurements.txt");
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        int warmup = 1;
+        int runs = 3;
+        String mode = "all";
+        Path csv = null;
+        Path expected = null;
+        Path truth = null;
+        List<String> jvmArgs = new ArrayList<>();
+        List<String> implementations = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--input" -> input = Path.of(args[++i]);
+                case "--max-threads" -> maxThreads = Integer.parseInt(args[++i]);
+                case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+                case "--runs" -> runs = Integer.parseInt(args[++i]);
+                case "--mode" -> mode = args[++i];
+                case "--csv" -> csv = Path.of(args[++i]);
+                case "--expected" -> expected = Path.of(args[++i]);
+                case "--truth" -> truth = Path.of(args[++i]);
+                case "--jvm-arg" -> jvmArgs.add(args[++i]);
+                default -> implementations.add(args[i]);
+            }
+        }
+        if (implementations.isEmpty()) {
+            implementations.add("robjk");
+        }
+
+        Predicate<String> check = null;
+        if (truth != null) {
+            Map<String, VerifyResults.StationTotals> totals = VerifyResults.readTruth(truth);
+            check = line -> VerifyResults.verify(totals, line).isEmpty();
+        }
+        else if (expected != null) {
+            check = MacroBenchmark.resultLine(Files.readString(expected))::equals;
+        }
+
+        long bytes = Files.size(input);
+        long rows = countRows(input);
+        Path workDir = MacroBenchmark.prepareWorkDir(input.toAbsolutePath());
+
+        List<List<Integer>> cores = cores();
+        List<String> modes = modes(mode, cores);
+        System.out.printf("%d rows, %d MB, %d physical cores, %d logical CPUs, modes %s%n", rows, bytes >> 20,
+                cores.size(), cores.stream().mapToInt(List::size).sum(), modes);
+
+        List<Point> points = new ArrayList<>();
+        for (String implementation : implementations) {
+            for (String pinning : modes) {
+                double singleThreadMs = 0;
+
+                for (int threads = 1; threads <= maxThreads; threads++) {
+                    List<String> launcher = launcher(pinning, threads, cores);
+                    if (launcher == null) {
+                        // more threads than this mode has CPUs for
+                        break;
+                    }
+
+                    List<String> threadArgs = new ArrayList<>(jvmArgs);
+                    threadArgs.add("-XX:ActiveProcessorCount=" + threads);
+
+                    for (int i = 0; i < warmup; i++) {
+                        MacroBenchmark.run(implementation, workDir, launcher, threadArgs, check);
+                    }
+                    List<MacroBenchmark.Run> measured = new ArrayList<>();
+                    for (int i = 0; i < runs; i++) {
+                        measured.add(MacroBenchmark.run(implementation, workDir, launcher, threadArgs, check));
+                    }
+                    MacroBenchmark.Summary summary = new MacroBenchmark.Summary(implementation, measured);
+
+                    double medianMs = summary.wallMedianMs();
+                    if (threads == 1) {
+                        singleThreadMs = medianMs;
+                    }
+                    double speedup = singleThreadMs / medianMs;
+                    double serialFraction = threads == 1 ? Double.NaN
+                            : (1 / speedup - 1.0 / threads) / (1 - 1.0 / threads);
+
+                    Point point = new Point(implementation, pinning, threads, medianMs,
+                            bytes / 1e6 / (medianMs / 1000), rows / (medianMs / 1000), speedup, speedup / threads,
+                            serialFraction, summary.failed());
+                    points.add(point);
+                    print(point);
+                }
+            }
+        }
+
+        if (csv != null) {
+            Files.writeString(csv, toCsv(points));
+        }
+    }
+
+    private static void print(Point point) {
+        System.out.printf("%-16s %-9s %3d threads: %8.0f ms %8.1f MB/s %12.0f rows/s  speedup %5.2f  efficiency %4.0f%%"
+                + "  serial %s%s%n",
+                point.implementation(), point.mode(), point.threads(), point.medianMs(), point.megabytesPerSecond(),
+                point.rowsPerSecond(), point.speedup(), point.efficiency() * 100,
+                Double.isNaN(point.serialFraction()) ? "   -" : "%.3f".formatted(point.serialFraction()),
+                point.failed() ? "  FAILED" : "");
+    }
+
+    private static String toCsv(List<Point> points) {
+        return points.stream()
+                .map(point -> "%s,%s,%d,%.1f,%.1f,%.0f,%.3f,%.3f,%s,%b".formatted(point.implementation(), point.mode(),
+                        point.threads(), point.medianMs(), point.megabytesPerSecond(), point.rowsPerSecond(),
+                        point.speedup(), point.efficiency(),
+                        Double.isNaN(point.serialFraction()) ? "" : "%.4f".formatted(point.serialFraction()),
+                        point.failed()))
+                .collect(Collectors.joining("\n", "implementation,mode,threads,median_ms,mb_per_s,rows_per_s,speedup,"
+                        + "efficiency,serial_fraction,failed\n", "\n"));
+    }
+
+    private static List<String> modes(String mode, List<List<Integer>> cores) {
+        boolean pinnable = !cores.isEmpty() && Files.isExecutable(Path.of("/usr/bin/taskset"));
+        boolean siblings = cores.stream().anyMatch(core -> core.size() > 1);
+
+        List<String> modes = new ArrayList<>();
+        if (mode.equals("all") || mode.equals("unpinned")) {
+            modes.add("unpinned");
+        }
+        if ((mode.equals("all") || mode.equals("nosmt")) && pinnable) {
+            modes.add("nosmt");
+        }
+        // without siblings smt pins exactly as nosmt would
+        if ((mode.equals("all") && siblings || mode.equals("smt")) && pinnable) {
+            modes.add("smt");
+        }
+        return modes;
+    }
+
+    /**
+     * @return the command prefix pinning to the CPUs for this mode and thread count, empty when unpinned, or null when
+     * the mode doesn't have that many CPUs
+     */
+    private static List<String> launcher(String mode, int threads, List<List<Integer>> cores) {
+        List<Integer> cpus = new ArrayList<>();
+        switch (mode) {
+            case "unpinned" -> {
+                return List.of();
+            }
+            case "nosmt" -> {
+                for (int core = 0; core < Math.min(threads, cores.size()); core++) {
+                    cpus.add(cores.get(core).getFirst());
+                }
+            }
+            default -> {
+                for (List<Integer> core : cores) {
+                    for (int cpu : core) {
+                        if (cpus.size() < threads) {
+                            cpus.add(cpu);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (cpus.size() < threads) {
+            return null;
+        }
+        return List.of("/usr/bin/taskset", "-c", cpus.stream().map(String::valueOf).collect(Collectors.joining(",")));
+    }
+
+    /**
+     * @return online logical CPUs grouped by physical core (Linux sysfs), empty if the topology isn't available
+     */
+    private static List<List<Integer>> cores() {
+        Map<String, List<Integer>> cores = new LinkedHashMap<>();
+        Path cpuRoot = Path.of("/sys/devices/system/cpu");
+        try {
+            // CPU numbers can have gaps (offlined CPUs, sparse numbering), so walk the online list, not cpu0, cpu1...
+            for (int cpu : parseCpuList(Files.readString(cpuRoot.resolve("online")).trim())) {
+                Path siblings = cpuRoot.resolve("cpu" + cpu).resolve("topology/thread_siblings_list");
+                // siblings can include offline CPUs, taskset would refuse those
+                List<Integer> core = parseCpuList(Files.readString(siblings).trim());
+                core.removeIf(sibling -> !isOnline(cpuRoot, sibling));
+                cores.putIfAbsent(core.toString(), core);
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            return List.of();
+        }
+        return new ArrayList<>(cores.values());
+    }
+
+    private static boolean isOnline(Path cpuRoot, int cpu) {
+        // cpu0 usually can't be offlined and has no online file
+        Path online = cpuRoot.resolve("cpu" + cpu).resolve("online");
+        try {
+            return !Files.exists(online) || Files.readString(online).trim().equals("1");
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static List<Integer> parseCpuList(String list) {
+        // e.g. "0,64" or "0-1"
+        TreeSet<Integer> cpus = new TreeSet<>();
+        for (String range : list.split(",")) {
+            String[] bounds = range.split("-");
+            int from = Integer.parseInt(bounds[0]);
+            int to = bounds.length > 1 ? Integer.parseInt(bounds[1]) : from;
+            for (int cpu = from; cpu <= to; cpu++) {
+                cpus.add(cpu);
+            }
+        }
+        return new ArrayList<>(cpus);
+    }
+
+    private static long countRows(Path input) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ); Arena arena = Arena.ofConfined()) {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            long rows = 0;
+            for (long offset = 0; offset < segment.byteSize(); offset++) {
+                if (segment.get(JAVA_BYTE, offset) == '\n') {
+                    rows++;
+                }
+            }
+            return rows;
+        }
+    }
+}
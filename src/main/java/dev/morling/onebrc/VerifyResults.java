@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks an implementation's output against the ground truth {@link CreateMeasurements} writes next to every file it
+ * generates, so a run on a freshly generated file can be validated without a slow reference run to compare against.
+ * <p>
+ * The truth file holds each station's exact count, sum, min and max, the temperatures as integer tenths - one
+ * {@code name;count;sum;min;max} line per station that was measured at all. Min and max must match exactly. The mean
+ * is checked against the exact mean rather than one particular rounding of it: it must be within half a tenth, so both
+ * neighbours are accepted when the exact mean is a tie (implementations differ on which way those go, and summing
+ * doubles can tip them either way), anything further off is wrong. Stations must all be there, none extra, and in
+ * {@link String} order.
+ * <p>
+ * Station names can contain ", " themselves (Washington, D.C.), so entries are found by the min/mean/max that closes
+ * each of them rather than by splitting the line.
+ * <p>
+ * Usage: VerifyResults [--max-problems n] truth-file [output-file]
+ * <p>
+ * The output is the first line starting '{' in the file, or on stdin without one, e.g.
+ * {@code java CalculateAverage_robjk | java VerifyResults measurements.txt.truth}. Exits 1 if there's any problem.
+ */
+public class VerifyResults {
+
+    private static final Pattern ENTRY_VALUES = Pattern.compile("=(-?\\d+\\.\\d)/(-?\\d+\\.\\d)/(-?\\d+\\.\\d)(, |}$)");
+
+    record StationTotals(String name, long count, long sum, int min, int max) {
+        String exactMean() {
+            return "%.4f".formatted(sum / 10.0 / count);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxProblems = 20;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--max-problems" -> maxProblems = Integer.parseInt(args[++i]);
+                default -> files.add(Path.of(args[i]));
+            }
+        }
+        if (files.isEmpty() || files.size() > 2) {
+            System.out.println("Usage: VerifyResults [--max-problems n] truth-file [output-file]");
+            System.exit(1);
+        }
+
+        Map<String, StationTotals> truth = readTruth(files.getFirst());
+        String output;
+        if (files.size() > 1) {
+            output = Files.readString(files.get(1));
+        }
+        else {
+            try (InputStream in = System.in) {
+                output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        List<String> problems = verify(truth, MacroBenchmark.resultLine(output));
+        if (problems.isEmpty()) {
+            System.out.printf("OK, all %,d stations match%n", truth.size());
+            return;
+        }
+        problems.stream().limit(maxProblems).forEach(System.out::println);
+        if (problems.size() > maxProblems) {
+            System.out.printf("... and %,d more%n", problems.size() - maxProblems);
+        }
+        System.out.printf("WRONG, %,d problems against %,d stations%n", problems.size(), truth.size());
+        System.exit(1);
+    }
+
+    /**
+     * @return every difference between the output and the truth, empty if it's correct
+     */
+    static List<String> verify(Map<String, StationTotals> truth, String resultLine) {
+        List<String> problems = new ArrayList<>();
+        if (!resultLine.startsWith("{") || !resultLine.endsWith("}")) {
+            problems.add("no result line, expected {name=min/mean/max, ...}");
+            return problems;
+        }
+
+        Map<String, String[]> actual = new LinkedHashMap<>();
+        Matcher values = ENTRY_VALUES.matcher(resultLine);
+        int entryStart = 1;
+        String previous = null;
+        while (values.find()) {
+            String name = resultLine.substring(entryStart, values.start());
+            if (actual.put(name, new String[]{ values.group(1), values.group(2), values.group(3) }) != null) {
+                problems.add("%s: listed more than once".formatted(name));
+            }
+            if (previous != null && previous.compareTo(name) >= 0) {
+                problems.add("%s: out of order, comes after %s".formatted(name, previous));
+            }
+            previous = name;
+            entryStart = values.end();
+        }
+        // all that's left of a fully parsed line is its '}' - or of an empty result, "{}"
+        if (entryStart < resultLine.length() - 1) {
+            problems.add("unparseable from column %d: %s".formatted(entryStart,
+                    abbreviate(resultLine.substring(entryStart))));
+        }
+
+        for (StationTotals expected : truth.values()) {
+            String[] found = actual.get(expected.name());
+            if (found == null) {
+                problems.add("%s: missing".formatted(expected.name()));
+                continue;
+            }
+            int min = parseTenths(found[0]);
+            int mean = parseTenths(found[1]);
+            int max = parseTenths(found[2]);
+            if (min != expected.min()) {
+                problems.add("%s: min %s, expected %s".formatted(expected.name(), found[0], format(expected.min())));
+            }
+            // |mean - sum / count| <= 0.5 tenths, in integers so there's no doubt about the ties
+            if (2 * Math.abs(mean * expected.count() - expected.sum()) > expected.count()) {
+                problems.add("%s: mean %s, expected %s rounded".formatted(expected.name(), found[1],
+                        expected.exactMean()));
+            }
+            if (max != expected.max()) {
+                problems.add("%s: max %s, expected %s".formatted(expected.name(), found[2], format(expected.max())));
+            }
+        }
+        for (String name : actual.keySet()) {
+            if (!truth.containsKey(name)) {
+                problems.add("%s: unexpected station".formatted(name));
+            }
+        }
+        return problems;
+    }
+
+    static Map<String, StationTotals> readTruth(Path path) throws IOException {
+        Map<String, StationTotals> truth = new LinkedHashMap<>();
+        try (var lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            lines.filter(line -> !line.startsWith("#")).forEach(line -> {
+                // split from the right, names can't contain ';' but let's not rely on more than that
+                String[] fields = new String[5];
+                int end = line.length();
+                for (int field = 4; field > 0; field--) {
+                    int separator = line.lastIndexOf(';', end - 1);
+                    fields[field] = line.substring(separator + 1, end);
+                    end = separator;
+                }
+                fields[0] = line.substring(0, end);
+                truth.put(fields[0], new StationTotals(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+            });
+        }
+        return truth;
+    }
+
+    /**
+     * writes the stations in {@link String} order, the order every implementation prints them in
+     */
+    static void writeTruth(Path path, List<StationTotals> stations) throws IOException {
+        Map<String, StationTotals> sorted = new TreeMap<>();
+        for (StationTotals station : stations) {
+            sorted.put(station.name(), station);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            writer.write("# station;count;sum;min;max, temperatures in tenths\n");
+            for (StationTotals station : sorted.values()) {
+                writer.write("%s;%d;%d;%d;%d\n".formatted(station.name(), station.count(), station.sum(),
+                        station.min(), station.max()));
+            }
+        }
+    }
+
+    private static int parseTenths(String value) {
+        // always one decimal, as matched
+        return Integer.parseInt(value.replace(".", ""));
+    }
+
+    private static String format(int tenths) {
+        return (tenths < 0 ? "-" : "") + Math.abs(tenths) / 10 + "." + Math.abs(tenths) % 10;
+    }
+
+    private static String abbreviate(String text) {
+        return text.length() > 60 ? text.substring(0, 60) + "..." : text;
+    }
+}